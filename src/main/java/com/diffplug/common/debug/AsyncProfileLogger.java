@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.diffplug.common.base.Preconditions;
+import com.diffplug.common.base.StringPrinter;
+import com.diffplug.common.base.Unhandled;
+
+/**
+ * A {@link ProfileLogger} whose {@link #log(String)} only stores a timestamp and the
+ * message into a preallocated ring buffer.  A daemon thread formats the messages and
+ * writes them to the printer in batches, with one `print` per batch.
+ *
+ * ```java
+ * AsyncProfileLogger logger = AsyncProfileLogger.create(DebugFileLogger.writeToDesktop("log.txt"), Mode.DELTA, 4096, Overflow.DROP);
+ * ...
+ * logger.log("parsed");
+ * ...
+ * logger.close();
+ * ```
+ *
+ * If the buffer fills up, the {@link Overflow} decides what happens, and the number of
+ * dropped messages is written to the log.  Call {@link #flush()} to wait until everything
+ * logged so far has been written.  The consumer is a daemon thread, so messages which
+ * are still buffered when the JVM exits are lost unless {@link #close()} has been called.
+ *
+ * Each message is formatted in the mode which was set when it was logged, so
+ * {@link #setMode(Mode)} only affects messages which are logged after it.
+ */
+public class AsyncProfileLogger extends ProfileLogger implements AutoCloseable {
+	/** What {@link AsyncProfileLogger#log(String)} does when the ring buffer is full. */
+	public enum Overflow {
+		/** Drops the message. */
+		DROP,
+		/** Waits for the consumer to make room. */
+		BLOCK,
+		/** Once the buffer is half full, keeps only one in {@link AsyncProfileLogger#SAMPLE_RATE} messages, and drops everything when it is full. */
+		SAMPLE
+	}
+
+	/** Under {@link Overflow#SAMPLE}, one in this many messages is kept once the buffer is half full. */
+	public static final int SAMPLE_RATE = 16;
+	/** The most entries which are formatted into a single `print`. */
+	private static final int MAX_BATCH = 256;
+	/** How long the consumer parks when the buffer is empty. */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Overflow overflow;
+	private final int mask;
+	private final long[] timestamps;
+	private final String[] messages;
+	/** The mode of each message, as it was when the message was logged. */
+	private final Mode[] modes;
+	/** The sequence of each slot: `pos` means it is free for the producer of `pos`, `pos + 1` means it holds `pos`. */
+	private final AtomicLongArray sequences;
+	/** The next position to be claimed by a producer. */
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong sampleCounter = new AtomicLong();
+	/** Every position below this has been written to the printer. */
+	private volatile long written = 0;
+	private volatile boolean closed = false;
+	/** A copy of the mode which producers can safely read. */
+	private volatile Mode logMode;
+	private final Thread consumer;
+
+	private AsyncProfileLogger(StringPrinter printer, Mode mode, int capacity, Overflow overflow) {
+		super(printer, mode);
+		Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30), "capacity must be between 1 and 2^30");
+		this.overflow = Objects.requireNonNull(overflow);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.timestamps = new long[size];
+		this.messages = new String[size];
+		this.modes = new Mode[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i) {
+			sequences.set(i, i);
+		}
+		this.consumer = new Thread(this::consume, "AsyncProfileLogger");
+		consumer.setDaemon(true);
+	}
+
+	/** Creates a logger whose ring buffer holds `capacity` messages (rounded up to a power of two), and starts its consumer thread. */
+	public static AsyncProfileLogger create(StringPrinter printer, Mode mode, int capacity, Overflow overflow) {
+		AsyncProfileLogger logger = new AsyncProfileLogger(printer, mode, capacity, overflow);
+		logger.consumer.start();
+		return logger;
+	}
+
+	/** Sets the mode of the messages which are logged after this call. */
+	@Override
+	public void setMode(Mode mode) {
+		super.setMode(mode);
+		logMode = mode;
+	}
+
+	/** Stores the given statement to be logged by the consumer thread, which doesn't format or lock. */
+	@Override
+	public void log(String txt) {
+		Objects.requireNonNull(txt);
+		Mode mode = logMode;
+		if (mode == Mode.OFF || closed) {
+			return;
+		}
+		if (overflow == Overflow.SAMPLE && tail.get() - written > (mask + 1) / 2) {
+			if (sampleCounter.getAndIncrement() % SAMPLE_RATE != 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+		long pos = tail.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long difference = sequences.get(index) - pos;
+			if (difference == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					// timestamp after claiming, so that the ring is as close to timestamp order as possible
+					timestamps[index] = System.currentTimeMillis();
+					messages[index] = txt;
+					modes[index] = mode;
+					sequences.lazySet(index, pos + 1);
+					return;
+				}
+				pos = tail.get();
+			} else if (difference < 0) {
+				// the slot still holds an unconsumed entry, so we're full
+				if (overflow == Overflow.BLOCK && !closed) {
+					LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+					pos = tail.get();
+				} else {
+					dropped.incrementAndGet();
+					return;
+				}
+			} else {
+				// another producer claimed this position
+				pos = tail.get();
+			}
+		}
+	}
+
+	/** The consumer loop, which formats and prints batches until closed and drained. */
+	private void consume() {
+		long head = 0;
+		StringBuilder batch = new StringBuilder();
+		while (true) {
+			int count = 0;
+			while (count < MAX_BATCH) {
+				int index = (int) head & mask;
+				if (sequences.get(index) != head + 1) {
+					break;
+				}
+				long timestamp = timestamps[index];
+				String message = messages[index];
+				Mode mode = modes[index];
+				messages[index] = null;
+				sequences.lazySet(index, head + mask + 1);
+				++head;
+				++count;
+				appendFormatted(batch, mode, timestamp, message);
+			}
+			long numDropped = dropped.getAndSet(0);
+			if (numDropped > 0) {
+				batch.append("(dropped ").append(numDropped).append(" log messages)\n");
+			}
+			if (batch.length() > 0) {
+				try {
+					printer.print(batch.toString());
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				batch.setLength(0);
+			}
+			written = head;
+			if (count == 0) {
+				if (closed && head == tail.get()) {
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/** The last timestamp, for {@link Mode#DELTA}.  Only touched by the consumer. */
+	private long lastTimestamp = epoch;
+
+	private void appendFormatted(StringBuilder batch, Mode mode, long timestamp, String message) {
+		switch (mode) {
+		case EPOCH:
+			batch.append(format(timestamp - epoch, message)).append('\n');
+			break;
+		case DELTA:
+			// producers can still be descheduled between claiming a slot and reading the clock, so never go backwards
+			batch.append(format(Math.max(0, timestamp - lastTimestamp), message)).append('\n');
+			lastTimestamp = Math.max(lastTimestamp, timestamp);
+			break;
+		case OFF:
+			break;
+		default:
+			throw Unhandled.enumException(mode);
+		}
+	}
+
+	/** Blocks until everything which was logged before this call has been written to the printer. */
+	public void flush() {
+		long target = tail.get();
+		while (written < target && consumer.isAlive()) {
+			LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+		}
+	}
+
+	/** Writes everything which has been logged, then stops the consumer thread.  Messages logged after closing are dropped. */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(consumer);
+		try {
+			consumer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
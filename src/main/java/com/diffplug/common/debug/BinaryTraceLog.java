@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.diffplug.common.base.Errors;
+import com.diffplug.common.base.Preconditions;
+import com.diffplug.common.base.Unhandled;
+
+/**
+ * A compact binary log of timestamped events, for when formatting text on every
+ * event (as {@link ProfileLogger} does) is too expensive.  Each event is a tag byte,
+ * the nanoseconds since the previous event as a varint, the thread ID (only when it
+ * changes), and an interned ID for its name, so a typical event takes 3-5 bytes.
+ *
+ * ```java
+ * BinaryTraceLog trace = DebugFileLogger.writeTraceTo(file);
+ * trace.log("connected");
+ * stepProfiler.traceTo(trace);
+ * ...
+ * trace.close();
+ * ...
+ * byte[] bytes = Files.readAllBytes(file.toPath());
+ * System.out.println(BinaryTraceLog.toText(bytes, ProfileLogger.Mode.DELTA));
+ * Files.write(jsonFile, BinaryTraceLog.toChromeJson(bytes).getBytes(UTF_8));
+ * ```
+ *
+ * Only the first {@link #MAX_NAMES} distinct names are interned, any further
+ * names are recorded as `(too many names)`.
+ */
+public class BinaryTraceLog implements AutoCloseable {
+	/** The most distinct event names which will be recorded. */
+	public static final int MAX_NAMES = 1 << 16;
+	static final String TOO_MANY_NAMES = "(too many names)";
+
+	private static final byte[] MAGIC = "DDTRACE1".getBytes(StandardCharsets.US_ASCII);
+	private static final int TYPE_NAME = 0, TYPE_INSTANT = 1, TYPE_BEGIN = 2, TYPE_END = 3;
+	private static final int TYPE_MASK = 0x3;
+	private static final int THREAD_CHANGED = 0x4;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** The largest event is a tag and three varints. */
+	private static final int MAX_EVENT_BYTES = 1 + 3 * Varints.MAX_BYTES;
+
+	private final OutputStream output;
+	private final int maxNames;
+	private final Map<String, Integer> names = new HashMap<>();
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private long lastNanos;
+	private long lastThreadId = -1;
+	private int tooManyNamesId = -1;
+	private boolean closed = false;
+
+	/** Writes a trace to the given stream, which is closed by {@link #close()}. */
+	public BinaryTraceLog(OutputStream output) {
+		this(output, MAX_NAMES);
+	}
+
+	BinaryTraceLog(OutputStream output, int maxNames) {
+		this.output = Objects.requireNonNull(output);
+		this.maxNames = maxNames;
+		System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+		position = Varints.write(buffer, MAGIC.length, System.currentTimeMillis());
+		lastNanos = System.nanoTime();
+	}
+
+	/** Records an instantaneous event, the equivalent of {@link ProfileLogger#log(String)}. */
+	public void log(String name) {
+		record(TYPE_INSTANT, name, Thread.currentThread().getId());
+	}
+
+	/** Records the start of a span on the current thread. */
+	public void begin(String name) {
+		record(TYPE_BEGIN, name, Thread.currentThread().getId());
+	}
+
+	/** Records the end of a span on the current thread. */
+	public void end(String name) {
+		record(TYPE_END, name, Thread.currentThread().getId());
+	}
+
+	/** Records the end of a span which began on the given thread, so that its begin and end match up even if another thread ends it. */
+	void end(String name, long threadId) {
+		record(TYPE_END, name, threadId);
+	}
+
+	private synchronized void record(int type, String name, long threadId) {
+		Objects.requireNonNull(name);
+		if (closed) {
+			return;
+		}
+		long now = System.nanoTime();
+		int id = intern(name);
+		if (position + MAX_EVENT_BYTES > buffer.length) {
+			writeBuffer();
+		}
+		int tag = type;
+		if (threadId != lastThreadId) {
+			tag |= THREAD_CHANGED;
+		}
+		buffer[position++] = (byte) tag;
+		position = Varints.write(buffer, position, now - lastNanos);
+		lastNanos = now;
+		if (threadId != lastThreadId) {
+			position = Varints.write(buffer, position, threadId);
+			lastThreadId = threadId;
+		}
+		position = Varints.write(buffer, position, id);
+	}
+
+	/** Returns the ID for the given name, writing its definition if this is the first time it has been seen. */
+	private int intern(String name) {
+		Integer existing = names.get(name);
+		if (existing != null) {
+			return existing;
+		}
+		if (names.size() >= maxNames) {
+			if (tooManyNamesId == -1) {
+				tooManyNamesId = define(TOO_MANY_NAMES);
+			}
+			return tooManyNamesId;
+		}
+		return define(name);
+	}
+
+	private int define(String name) {
+		int id = names.size();
+		names.put(name, id);
+		byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+		if (position + 1 + 2 * Varints.MAX_BYTES + utf8.length > buffer.length) {
+			writeBuffer();
+		}
+		buffer[position++] = TYPE_NAME;
+		position = Varints.write(buffer, position, id);
+		position = Varints.write(buffer, position, utf8.length);
+		if (utf8.length <= buffer.length - position) {
+			System.arraycopy(utf8, 0, buffer, position, utf8.length);
+			position += utf8.length;
+		} else {
+			writeBuffer();
+			Errors.rethrow().run(() -> output.write(utf8));
+		}
+		return id;
+	}
+
+	private void writeBuffer() {
+		Errors.rethrow().run(() -> output.write(buffer, 0, position));
+		position = 0;
+	}
+
+	/** Writes everything which has been recorded to the underlying stream, and flushes it. */
+	public synchronized void flush() {
+		if (!closed) {
+			writeBuffer();
+			Errors.rethrow().run(output::flush);
+		}
+	}
+
+	/** Writes everything which has been recorded, and closes the underlying stream.  Events recorded afterwards are ignored. */
+	@Override
+	public synchronized void close() {
+		if (!closed) {
+			flush();
+			closed = true;
+			Errors.rethrow().run(output::close);
+		}
+	}
+
+	/** A single decoded event. */
+	static class Event {
+		final int type;
+		final String name;
+		final long threadId;
+		/** Nanoseconds since the start of the trace. */
+		final long nanos;
+
+		Event(int type, String name, long threadId, long nanos) {
+			this.type = type;
+			this.name = name;
+			this.threadId = threadId;
+			this.nanos = nanos;
+		}
+	}
+
+	/** Decodes the events in the given trace, and returns the epoch (in ms) of its start. */
+	static long decode(byte[] trace, List<Event> events) {
+		Preconditions.checkArgument(trace.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(trace, MAGIC.length), MAGIC), "Not a BinaryTraceLog");
+		int[] position = {MAGIC.length};
+		long epochMs = Varints.read(trace, position);
+		List<String> names = new ArrayList<>();
+		long nanos = 0;
+		long threadId = -1;
+		while (position[0] < trace.length) {
+			int tag = trace[position[0]++];
+			int type = tag & TYPE_MASK;
+			if (type == TYPE_NAME) {
+				int id = (int) Varints.read(trace, position);
+				int length = (int) Varints.read(trace, position);
+				Preconditions.checkArgument(id == names.size() && position[0] + length <= trace.length, "Malformed name");
+				names.add(new String(trace, position[0], length, StandardCharsets.UTF_8));
+				position[0] += length;
+			} else {
+				nanos += Varints.read(trace, position);
+				if ((tag & THREAD_CHANGED) != 0) {
+					threadId = Varints.read(trace, position);
+				}
+				int id = (int) Varints.read(trace, position);
+				Preconditions.checkArgument(id < names.size(), "Undefined name");
+				events.add(new Event(type, names.get(id), threadId, nanos));
+			}
+		}
+		return epochMs;
+	}
+
+	/**
+	 * Decodes the given trace into the same text layout as {@link ProfileLogger}, with
+	 * timestamps since the start of the trace (`EPOCH`) or since the previous event (`DELTA`).
+	 * Spans are shown as `start name` and `finish name`.
+	 */
+	public static String toText(byte[] trace, ProfileLogger.Mode mode) {
+		Objects.requireNonNull(trace);
+		Objects.requireNonNull(mode);
+		List<Event> events = new ArrayList<>();
+		decode(trace, events);
+		StringBuilder builder = new StringBuilder();
+		long lastMs = 0;
+		for (Event event : events) {
+			long ms = event.nanos / 1_000_000;
+			String txt = event.type == TYPE_BEGIN ? "start " + event.name : event.type == TYPE_END ? "finish " + event.name : event.name;
+			switch (mode) {
+			case EPOCH:
+				builder.append(ProfileLogger.format(ms, txt)).append('\n');
+				break;
+			case DELTA:
+				builder.append(ProfileLogger.format(ms - lastMs, txt)).append('\n');
+				lastMs = ms;
+				break;
+			case OFF:
+				break;
+			default:
+				throw Unhandled.enumException(mode);
+			}
+		}
+		return builder.toString();
+	}
+
+	/** Decodes the given trace into Chrome Trace Event JSON, which can be opened in `chrome://tracing` or Perfetto. */
+	public static String toChromeJson(byte[] trace) {
+		Objects.requireNonNull(trace);
+		List<Event> events = new ArrayList<>();
+		decode(trace, events);
+		ChromeTrace chrome = new ChromeTrace();
+		for (Event event : events) {
+			char phase;
+			switch (event.type) {
+			case TYPE_BEGIN:
+				phase = 'B';
+				break;
+			case TYPE_END:
+				phase = 'E';
+				break;
+			default:
+				phase = 'i';
+				break;
+			}
+			chrome.event(event.name, phase, event.nanos / 1000.0, event.threadId);
+		}
+		return chrome.finish();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import javax.annotation.Nullable;
+
+/**
+ * Consumes the results of a benchmarked operation, so that the JIT can't
+ * eliminate the code which computed them (the same trick as JMH's Blackhole).
+ *
+ * Each value is compared against fields which the JIT can't prove are constant,
+ * so the comparison can't be removed, but it is never actually true.
+ */
+public final class Blackhole {
+	private volatile int int1 = 1, int2 = 2;
+	private volatile long long1 = 1, long2 = 2;
+	private volatile double double1 = 1, double2 = 2;
+	private volatile boolean bool1 = false, bool2 = true;
+
+	private int random = (int) System.nanoTime();
+	private int randomMask = 1;
+	private volatile Object sink;
+
+	Blackhole() {}
+
+	public void consume(int value) {
+		if (value == int1 & value == int2) {
+			throw new IllegalStateException("Can't happen");
+		}
+	}
+
+	public void consume(long value) {
+		if (value == long1 & value == long2) {
+			throw new IllegalStateException("Can't happen");
+		}
+	}
+
+	public void consume(double value) {
+		if (value == double1 & value == double2) {
+			throw new IllegalStateException("Can't happen");
+		}
+	}
+
+	public void consume(boolean value) {
+		if (value == bool1 & value == bool2) {
+			throw new IllegalStateException("Can't happen");
+		}
+	}
+
+	/** Occasionally stores the object (increasingly rarely), so that it escapes without a store on every call. */
+	public void consume(@Nullable Object value) {
+		random = random * 1664525 + 1013904223;
+		if ((random & randomMask) == 0) {
+			sink = value;
+			randomMask = (randomMask << 1) + 1;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.diffplug.common.base.Errors;
+import com.diffplug.common.base.Preconditions;
+import com.diffplug.common.base.StringPrinter;
+
+/**
+ * Writes to a file through a large direct buffer, so that logging doesn't make a
+ * syscall per line.  Created by {@link DebugFileLogger#writeToBuffered(File, int, long, long, int)}.
+ *
+ * The buffer is written to the file when it fills up (every `flushEveryBytes`), when
+ * it has held data for `flushEveryMs` (checked on every print, and by a daemon thread
+ * while idle), on {@link #flush()} or {@link #close()}, and by a shutdown hook.
+ *
+ * There is a single shutdown hook for every logger, which only holds them weakly,
+ * and the idle flusher doesn't keep its logger alive either.  A logger which is
+ * garbage collected without being closed might lose its last `flushEveryMs` of output.
+ *
+ * Once the file is at least `rollAtBytes` long, it is renamed to `name.1` (shifting
+ * older files up to `name.maxRolledFiles`, and deleting the oldest) and a new file
+ * is started.
+ */
+public class BufferedFileLogger implements AutoCloseable {
+	private final File file;
+	private final long flushEveryNanos;
+	private final long rollAtBytes;
+	private final int maxRolledFiles;
+
+	private final ByteBuffer buffer;
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private final Thread flusher;
+
+	/** The loggers which haven't been closed yet, held weakly, guarded by itself. */
+	static final Set<BufferedFileLogger> OPEN = Collections.newSetFromMap(new WeakHashMap<>());
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(BufferedFileLogger::closeAllOpen, "BufferedFileLogger shutdown"));
+	}
+
+	/** Closes every logger which is still open, called by the shutdown hook. */
+	private static void closeAllOpen() {
+		List<BufferedFileLogger> open;
+		synchronized (OPEN) {
+			open = new ArrayList<>(OPEN);
+		}
+		for (BufferedFileLogger logger : open) {
+			logger.close();
+		}
+	}
+
+	private FileChannel channel;
+	/** When the oldest unflushed data was written, only meaningful if the buffer isn't empty. */
+	private long dirtySinceNanos;
+	private boolean closed = false;
+
+	BufferedFileLogger(File file, int flushEveryBytes, long flushEveryMs, long rollAtBytes, int maxRolledFiles) throws IOException {
+		Preconditions.checkArgument(flushEveryBytes >= 16, "flushEveryBytes must be at least 16");
+		Preconditions.checkArgument(flushEveryMs > 0, "flushEveryMs must be positive");
+		Preconditions.checkArgument(rollAtBytes > 0, "rollAtBytes must be positive");
+		Preconditions.checkArgument(maxRolledFiles >= 0, "maxRolledFiles must be non-negative");
+		this.file = Objects.requireNonNull(file);
+		this.flushEveryNanos = TimeUnit.MILLISECONDS.toNanos(flushEveryMs);
+		this.rollAtBytes = rollAtBytes;
+		this.maxRolledFiles = maxRolledFiles;
+		this.buffer = ByteBuffer.allocateDirect(flushEveryBytes);
+		openFile();
+
+		WeakReference<BufferedFileLogger> self = new WeakReference<>(this);
+		long parkNanos = flushEveryNanos;
+		flusher = new Thread(() -> {
+			while (true) {
+				LockSupport.parkNanos(parkNanos);
+				BufferedFileLogger logger = self.get();
+				if (logger == null || logger.isClosed()) {
+					return;
+				}
+				logger.flushIfStale();
+			}
+		}, "BufferedFileLogger " + file.getName());
+		flusher.setDaemon(true);
+		flusher.start();
+		synchronized (OPEN) {
+			OPEN.add(this);
+		}
+	}
+
+	private void openFile() throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		encode("LOG START: " + DateFormat.getDateTimeInstance().format(System.currentTimeMillis()) + "\n");
+	}
+
+	/** Appends the given string to the buffer. */
+	public synchronized void print(String str) {
+		Objects.requireNonNull(str);
+		if (closed) {
+			return;
+		}
+		Errors.rethrow().run(() -> {
+			encode(str);
+			if (buffer.position() > 0 && System.nanoTime() - dirtySinceNanos >= flushEveryNanos) {
+				writeBuffer();
+			}
+		});
+	}
+
+	/** Appends the given string and a newline to the buffer. */
+	public void println(String line) {
+		Objects.requireNonNull(line);
+		print(line + "\n");
+	}
+
+	/** Returns a StringPrinter which prints to this logger. */
+	public StringPrinter asStringPrinter() {
+		return new StringPrinter(this::print);
+	}
+
+	/** Encodes the string into the buffer, writing the buffer to the file whenever it fills up. */
+	private void encode(String str) throws IOException {
+		if (buffer.position() == 0) {
+			dirtySinceNanos = System.nanoTime();
+		}
+		CharBuffer chars = CharBuffer.wrap(str);
+		while (true) {
+			CoderResult result = encoder.encode(chars, buffer, false);
+			if (result.isOverflow()) {
+				writeBuffer();
+				dirtySinceNanos = System.nanoTime();
+			} else if (result.isUnderflow()) {
+				return;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+
+	/** Writes the buffer to the file, then rolls the file if it has gotten too big. */
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+		if (channel.position() >= rollAtBytes) {
+			roll();
+		}
+	}
+
+	/** Renames the file to `name.1` (shifting the older ones), and opens a new one. */
+	private void roll() throws IOException {
+		channel.close();
+		if (maxRolledFiles == 0) {
+			Files.deleteIfExists(file.toPath());
+		} else {
+			Files.deleteIfExists(rolled(maxRolledFiles).toPath());
+			for (int i = maxRolledFiles - 1; i >= 1; --i) {
+				File older = rolled(i);
+				if (older.exists()) {
+					Files.move(older.toPath(), rolled(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.move(file.toPath(), rolled(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		openFile();
+	}
+
+	/** Returns the file which has been rolled the given number of times. */
+	File rolled(int index) {
+		return new File(file.getParentFile(), file.getName() + "." + index);
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private synchronized void flushIfStale() {
+		if (!closed && buffer.position() > 0 && System.nanoTime() - dirtySinceNanos >= flushEveryNanos) {
+			Errors.log().run(this::writeBuffer);
+		}
+	}
+
+	/** Writes everything which has been printed to the file. */
+	public synchronized void flush() {
+		if (!closed && buffer.position() > 0) {
+			Errors.rethrow().run(this::writeBuffer);
+		}
+	}
+
+	/** Writes everything which has been printed to the file, and closes it.  Anything printed afterwards is ignored. */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			flush();
+			closed = true;
+			Errors.log().run(channel::close);
+		}
+		LockSupport.unpark(flusher);
+		synchronized (OPEN) {
+			OPEN.remove(this);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A copy of `System.nanoTime()` which a daemon thread updates about once per
+ * millisecond, so that reading it is only a volatile read.  The thread is
+ * started when this class is first used.
+ */
+class CachedClock {
+	private CachedClock() {}
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static volatile long nanos = System.nanoTime();
+
+	static {
+		Thread ticker = new Thread(() -> {
+			while (true) {
+				nanos = System.nanoTime();
+				LockSupport.parkNanos(TICK_NANOS);
+			}
+		}, "durian-debug cached clock");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/** Returns the value of `System.nanoTime()` as of the last tick. */
+	static long nanoTime() {
+		return nanos;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Locale;
+
+/**
+ * Builds a trace in the Chrome Trace Event JSON format, which can be opened
+ * in `chrome://tracing`, Perfetto, or speedscope.
+ */
+class ChromeTrace {
+	private final StringBuilder builder = new StringBuilder("{\"traceEvents\":[");
+	private boolean first = true;
+
+	/** Adds an event with the given phase (`B`egin, `E`nd, or `i`nstant), at the given time in microseconds. */
+	void event(String name, char phase, double timestampMicros, long threadId) {
+		start();
+		builder.append("{\"name\":").append(ProfileResults.jsonString(name));
+		builder.append(",\"ph\":\"").append(phase).append('"');
+		builder.append(",\"ts\":").append(formatMicros(timestampMicros));
+		builder.append(",\"pid\":1,\"tid\":").append(threadId);
+		if (phase == 'i') {
+			builder.append(",\"s\":\"t\"");
+		}
+		builder.append('}');
+	}
+
+	/** Adds a complete event (phase `X`), which starts and ends at the given times in microseconds. */
+	void complete(String name, double startMicros, double durationMicros, long threadId) {
+		start();
+		builder.append("{\"name\":").append(ProfileResults.jsonString(name));
+		builder.append(",\"ph\":\"X\",\"ts\":").append(formatMicros(startMicros));
+		builder.append(",\"dur\":").append(formatMicros(durationMicros));
+		builder.append(",\"pid\":1,\"tid\":").append(threadId).append('}');
+	}
+
+	/** Names the given thread. */
+	void threadName(long threadId, String name) {
+		start();
+		builder.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(threadId);
+		builder.append(",\"args\":{\"name\":").append(ProfileResults.jsonString(name)).append("}}");
+	}
+
+	private void start() {
+		builder.append(first ? "\n" : ",\n");
+		first = false;
+	}
+
+	private static String formatMicros(double micros) {
+		return String.format(Locale.ROOT, "%.3f", micros);
+	}
+
+	/** Returns the complete JSON. */
+	String finish() {
+		return builder.append("\n]}\n").toString();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+/**
+ * The granularity and overhead of `System.nanoTime()` on this JVM, measured once
+ * on first use.  {@link LapTimer#createCalibratedNanos()} subtracts the overhead
+ * from each lap.  Once it has been measured, the profilers print it with their
+ * results, so that timings close to the overhead can be taken with the appropriate
+ * grain of salt.  The profilers don't measure it themselves, since it takes ~100k
+ * calls to `System.nanoTime()`.
+ */
+public final class ClockCalibration {
+	private final double granularityNanos;
+	private final double overheadNanos;
+
+	private ClockCalibration(double granularityNanos, double overheadNanos) {
+		this.granularityNanos = granularityNanos;
+		this.overheadNanos = overheadNanos;
+	}
+
+	@Nullable
+	private static volatile ClockCalibration instance;
+
+	/** Returns the calibration for this JVM, measuring it on the first call (which takes a few milliseconds). */
+	public static ClockCalibration get() {
+		ClockCalibration calibration = instance;
+		if (calibration == null) {
+			synchronized (ClockCalibration.class) {
+				calibration = instance;
+				if (calibration == null) {
+					calibration = measure();
+					instance = calibration;
+				}
+			}
+		}
+		return calibration;
+	}
+
+	/** Prints the calibration to System.out, if it has already been measured. */
+	static void printIfMeasured() {
+		ClockCalibration calibration = instance;
+		if (calibration != null) {
+			System.out.println("Clock: " + calibration);
+		}
+	}
+
+	private static final int WARMUP = 20_000;
+	private static final int SAMPLES = 100_000;
+	private static final int GRANULARITY_SAMPLES = 1_000;
+
+	private static ClockCalibration measure() {
+		// warm up so that nanoTime is compiled and inlined
+		for (int i = 0; i < WARMUP; ++i) {
+			System.nanoTime();
+		}
+		// the smallest nonzero step which the clock takes
+		long granularity = Long.MAX_VALUE;
+		for (int i = 0; i < GRANULARITY_SAMPLES; ++i) {
+			long start = System.nanoTime();
+			long next;
+			while ((next = System.nanoTime()) == start) {}
+			granularity = Math.min(granularity, next - start);
+		}
+		// the mean time which a lap around nothing at all measures
+		long total = 0;
+		for (int i = 0; i < SAMPLES; ++i) {
+			long start = System.nanoTime();
+			total += System.nanoTime() - start;
+		}
+		return new ClockCalibration(granularity, (double) total / SAMPLES);
+	}
+
+	/** The smallest nonzero difference between two readings of `System.nanoTime()`, in nanoseconds. */
+	public double getGranularityNanos() {
+		return granularityNanos;
+	}
+
+	/** The mean time measured by a lap around nothing at all, in nanoseconds. */
+	public double getOverheadNanos() {
+		return overheadNanos;
+	}
+
+	/** Returns e.g. `nanoTime granularity=25 ns, overhead=21.3 ns per lap`. */
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "nanoTime granularity=%.0f ns, overhead=%.3g ns per lap", granularityNanos, overheadNanos);
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongFunction;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * The counts behind {@link IntHistogram} and {@link LongHistogram}: an open-addressing
+ * table of primitive keys.  Incrementing a key which has already been seen is a
+ * lock-free CAS which allocates nothing.  The first sighting of a key takes a lock,
+ * and occasionally grows the table.
+ *
+ * Counts are never negative and saturate at `Integer.MAX_VALUE`, so that they can
+ * never collide with the negative {@link #EMPTY} and {@link #MOVED} markers.
+ */
+final class CountTable {
+	/** Marks a slot which has no key. */
+	private static final int EMPTY = -1;
+	/** Marks a slot whose count has been moved to a bigger table. */
+	private static final int MOVED = -2;
+	/** Returned by {@link Table#find(long)} when the table has been replaced. */
+	private static final int RETRY = Integer.MIN_VALUE;
+
+	private volatile Table table = new Table(16);
+
+	/** Increments the given key by the given non-negative amount, and returns the new count. */
+	int add(long key, int count) {
+		Preconditions.checkArgument(count >= 0, "count must be non-negative");
+		while (true) {
+			Table current = table;
+			int slot = current.find(key);
+			if (slot == RETRY) {
+				awaitResize(current);
+				continue;
+			} else if (slot < 0) {
+				insert(key);
+				continue;
+			}
+			int prev = current.counts.get(slot);
+			while (prev != MOVED) {
+				int next = prev + count;
+				if (next < 0) {
+					// saturate rather than overflow
+					next = Integer.MAX_VALUE;
+				}
+				if (current.counts.compareAndSet(slot, prev, next)) {
+					return next;
+				}
+				prev = current.counts.get(slot);
+			}
+			// the table was resized out from under us, so try again in the new one
+			awaitResize(current);
+		}
+	}
+
+	/** Returns the count for the given key. */
+	int get(long key) {
+		while (true) {
+			Table current = table;
+			int slot = current.find(key);
+			if (slot == RETRY) {
+				awaitResize(current);
+				continue;
+			} else if (slot < 0) {
+				return 0;
+			}
+			int count = current.counts.get(slot);
+			if (count != MOVED) {
+				return count;
+			}
+			awaitResize(current);
+		}
+	}
+
+	/** Waits until the given table, which has started to move, has been replaced. */
+	private void awaitResize(Table old) {
+		while (table == old) {
+			Thread.yield();
+		}
+	}
+
+	/** Adds the given key with a count of zero, unless another thread beat us to it. */
+	private synchronized void insert(long key) {
+		Table current = table;
+		if (current.find(key) >= 0) {
+			return;
+		}
+		if (2 * (current.size + 1) > current.keys.length) {
+			current = resize(current);
+		}
+		int slot = ~current.find(key);
+		current.keys[slot] = key;
+		// publishes the key
+		current.counts.set(slot, 0);
+		++current.size;
+	}
+
+	/** Moves every count into a table twice as big.  Any thread which sees a MOVED count will retry in the new table. */
+	private Table resize(Table old) {
+		Table bigger = new Table(2 * old.keys.length);
+		for (int i = 0; i < old.keys.length; ++i) {
+			int count = old.counts.getAndSet(i, MOVED);
+			if (count != EMPTY) {
+				int slot = ~bigger.find(old.keys[i]);
+				bigger.keys[slot] = old.keys[i];
+				bigger.counts.set(slot, count);
+				++bigger.size;
+			}
+		}
+		table = bigger;
+		return bigger;
+	}
+
+	/**
+	 * Returns a string which shows the top n values.
+	 *
+	 * If the histogram is still being modified
+	 * when this is called, then it might return
+	 * an inconsistent view (only partly modified).
+	 */
+	String getTopValues(int numValues, LongFunction<String> toString) {
+		while (true) {
+			Table current = table;
+			TopValues<Long> topValues = new TopValues<>(numValues, toString::apply);
+			boolean moved = false;
+			for (int i = 0; i < current.keys.length; ++i) {
+				int count = current.counts.get(i);
+				if (count == MOVED) {
+					moved = true;
+					break;
+				} else if (count != EMPTY && topValues.accepts(count)) {
+					topValues.offer(count, current.keys[i]);
+				}
+			}
+			if (!moved) {
+				return topValues.format();
+			}
+			// the table is being resized, so start over with the new one
+			awaitResize(current);
+		}
+	}
+
+	/** An open-addressing table with linear probing. */
+	private static final class Table {
+		final long[] keys;
+		final AtomicIntegerArray counts;
+		final int mask;
+		/** Only modified under the CountTable's lock. */
+		int size;
+
+		Table(int capacity) {
+			keys = new long[capacity];
+			counts = new AtomicIntegerArray(capacity);
+			for (int i = 0; i < capacity; ++i) {
+				counts.set(i, EMPTY);
+			}
+			mask = capacity - 1;
+		}
+
+		/** Returns the slot which holds the given key, `~slot` for the empty slot where it belongs, or RETRY if this table has been replaced. */
+		int find(long key) {
+			int slot = hash(key) & mask;
+			while (true) {
+				int count = counts.get(slot);
+				if (count == EMPTY) {
+					return ~slot;
+				} else if (count == MOVED) {
+					return RETRY;
+				} else if (keys[slot] == key) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+	}
+
+	/** The murmur3 64-bit finalizer, so that sequential keys spread across the table. */
+	private static int hash(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+}
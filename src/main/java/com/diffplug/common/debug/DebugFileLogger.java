@@ -16,6 +16,7 @@
 package com.diffplug.common.debug;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
@@ -51,4 +52,30 @@ public class DebugFileLogger {
 			});
 		});
 	}
+
+	/**
+	 * Writes to the given file through a 64KB direct buffer, which is written out at least
+	 * every second, and rolls the file at 64MB, keeping 4 old files.  See
+	 * {@link #writeToBuffered(File, int, long, long, int)}.
+	 */
+	public static BufferedFileLogger writeToBuffered(File to) {
+		return writeToBuffered(to, 64 * 1024, 1000, 64L * 1024 * 1024, 4);
+	}
+
+	/**
+	 * Writes to the given file through a direct buffer of `flushEveryBytes`, rather than
+	 * flushing on every print.  The buffer is also written out once it has held data for
+	 * `flushEveryMs`, and when the JVM shuts down.  Once the file reaches `rollAtBytes`, it
+	 * is renamed to `name.1` and a new file is started, keeping at most `maxRolledFiles`.
+	 */
+	public static BufferedFileLogger writeToBuffered(File to, int flushEveryBytes, long flushEveryMs, long rollAtBytes, int maxRolledFiles) {
+		Objects.requireNonNull(to);
+		return Errors.rethrow().get(() -> new BufferedFileLogger(to, flushEveryBytes, flushEveryMs, rollAtBytes, maxRolledFiles));
+	}
+
+	/** Writes a {@link BinaryTraceLog} to the given file, through a buffer which is only flushed when the trace is flushed or closed. */
+	public static BinaryTraceLog writeTraceTo(File to) {
+		Objects.requireNonNull(to);
+		return Errors.rethrow().get(() -> new BinaryTraceLog(new FileOutputStream(to)));
+	}
 }
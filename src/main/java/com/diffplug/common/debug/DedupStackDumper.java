@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.diffplug.common.base.Preconditions;
+import com.diffplug.common.base.StringPrinter;
+
+/**
+ * A {@link StackDumper} for triggers which fire in hot loops.  Each distinct stack
+ * (and message) is dumped only the first time it occurs, and after that it is only
+ * counted.  Dumps are also rate-limited by a token bucket, so a flood of distinct
+ * stacks can't flood the console either, and once per summary interval the stacks
+ * which have occurred most often are dumped along with their counts.
+ *
+ * ```java
+ * DedupStackDumper dumper = DedupStackDumper.create(1, 10, 1, TimeUnit.MINUTES, 5);
+ * dumper.dumpWhenSysErrContains("Who did this?");
+ * ```
+ *
+ * The summary is lazy: it is printed by the first dump after the interval has
+ * elapsed, or by {@link #printSummary()}.
+ *
+ * At most `maxStacks` distinct stacks are kept.  When a new stack arrives and the
+ * table is full, the stack with the lowest count is evicted, so the heavy hitters
+ * survive a flood of one-off stacks.  An evicted stack which occurs again is treated
+ * as new, and the summary reports how many were evicted.
+ */
+public class DedupStackDumper {
+	private final double tokensPerNano;
+	private final double burst;
+	private final long summaryEveryNanos;
+	private final int summaryTopN;
+	private final int maxStacks;
+	private final LongSupplier nanoTicker;
+
+	private final Map<Key, Entry> entries = new HashMap<>();
+	private double tokens;
+	private long lastRefill;
+	private long nextSummary;
+	private long numSuppressed = 0;
+	private long numEvicted = 0;
+	private long numEvictedDumps = 0;
+
+	DedupStackDumper(double dumpsPerSecond, int burst, long summaryEvery, TimeUnit unit, int summaryTopN, int maxStacks, LongSupplier nanoTicker) {
+		Preconditions.checkArgument(dumpsPerSecond > 0, "dumpsPerSecond must be positive");
+		Preconditions.checkArgument(burst > 0, "burst must be positive");
+		Preconditions.checkArgument(summaryEvery > 0, "summaryEvery must be positive");
+		Preconditions.checkArgument(summaryTopN > 0, "summaryTopN must be positive");
+		Preconditions.checkArgument(maxStacks > 0, "maxStacks must be positive");
+		this.tokensPerNano = dumpsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.summaryEveryNanos = unit.toNanos(summaryEvery);
+		this.summaryTopN = summaryTopN;
+		this.maxStacks = maxStacks;
+		this.nanoTicker = nanoTicker;
+		this.tokens = burst;
+		this.lastRefill = nanoTicker.getAsLong();
+		this.nextSummary = lastRefill + summaryEveryNanos;
+	}
+
+	/** The number of distinct stacks which are kept by default. */
+	public static final int DEFAULT_MAX_STACKS = 1024;
+
+	/**
+	 * Creates a dumper which prints at most `burst` dumps at once, refilled at `dumpsPerSecond`,
+	 * a summary of the `summaryTopN` most frequent stacks once every `summaryEvery`, and which
+	 * keeps at most `maxStacks` distinct stacks.
+	 */
+	public static DedupStackDumper create(double dumpsPerSecond, int burst, long summaryEvery, TimeUnit unit, int summaryTopN, int maxStacks) {
+		return new DedupStackDumper(dumpsPerSecond, burst, summaryEvery, Objects.requireNonNull(unit), summaryTopN, maxStacks, System::nanoTime);
+	}
+
+	/** Same as {@link #create(double, int, long, TimeUnit, int, int)}, keeping at most {@link #DEFAULT_MAX_STACKS} distinct stacks. */
+	public static DedupStackDumper create(double dumpsPerSecond, int burst, long summaryEvery, TimeUnit unit, int summaryTopN) {
+		return create(dumpsPerSecond, burst, summaryEvery, unit, summaryTopN, DEFAULT_MAX_STACKS);
+	}
+
+	/** Creates a dumper which prints at most 10 dumps at once and 1 per second after that, with a summary of the top 10 stacks every minute. */
+	public static DedupStackDumper create() {
+		return create(1, 10, 1, TimeUnit.MINUTES, 10);
+	}
+
+	/** Dumps the current stack to the system error console, unless it has been dumped before or the rate limit has been hit. */
+	public void dump(String message) {
+		Objects.requireNonNull(message);
+		dump(message, StackDumper.captureStackBelow(DedupStackDumper.class));
+	}
+
+	/** Dumps the given stack, unless it has been dumped before or the rate limit has been hit. */
+	void dump(String message, List<StackTraceElement> stack) {
+		Key key = new Key(message, stack);
+		synchronized (this) {
+			long now = nanoTicker.getAsLong();
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				if (entries.size() >= maxStacks) {
+					evictLowest();
+				}
+				entry = new Entry(key);
+				entries.put(key, entry);
+			}
+			++entry.count;
+			if (!entry.printed) {
+				if (tryAcquire(now)) {
+					entry.printed = true;
+					String suppressed = numSuppressed == 0 ? "" : " (" + numSuppressed + " dumps suppressed by the rate limit)";
+					numSuppressed = 0;
+					StackDumper.printEmphasized(message + suppressed + "\n" + StackDumper.stackTraceToString(stack));
+				} else {
+					++numSuppressed;
+				}
+			}
+			if (now - nextSummary >= 0) {
+				printSummary(now);
+			}
+		}
+	}
+
+	/** Evicts the entry with the lowest count, which is only a scan when a new stack arrives at a full table. */
+	private void evictLowest() {
+		Entry lowest = null;
+		for (Entry entry : entries.values()) {
+			if (lowest == null || entry.count < lowest.count) {
+				lowest = entry;
+			}
+		}
+		entries.remove(lowest.key);
+		++numEvicted;
+		numEvictedDumps += lowest.count;
+	}
+
+	/** Takes a token from the bucket if there is one. */
+	private boolean tryAcquire(long now) {
+		tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/** Prints the summary now, regardless of the summary interval. */
+	public synchronized void printSummary() {
+		printSummary(nanoTicker.getAsLong());
+	}
+
+	private void printSummary(long now) {
+		nextSummary = now + summaryEveryNanos;
+		if (!entries.isEmpty()) {
+			StackDumper.printEmphasized(summary());
+		}
+	}
+
+	/** Returns the number of times, the number of distinct stacks, how many were evicted, and the most frequent stacks with their counts. */
+	public synchronized String summary() {
+		List<Entry> top = new ArrayList<>(entries.values());
+		top.sort(Comparator.comparingLong((Entry entry) -> entry.count).reversed());
+		long total = numEvictedDumps;
+		for (Entry entry : top) {
+			total += entry.count;
+		}
+		long numDumps = total;
+		String evicted = numEvicted == 0 ? "" : " (" + numEvicted + " stacks with " + numEvictedDumps + " dumps evicted)";
+		return StringPrinter.buildString(printer -> {
+			printer.println("DedupStackDumper: " + numDumps + " dumps of " + top.size() + " distinct stacks" + evicted);
+			for (Entry entry : top.subList(0, Math.min(summaryTopN, top.size()))) {
+				printer.println(entry.count + "x " + entry.key.message);
+				printer.print(StackDumper.stackTraceToString(entry.key.stack));
+			}
+		});
+	}
+
+	/** Returns the number of times the given message has been dumped with any stack which hasn't been evicted. */
+	public synchronized long getCount(String message) {
+		Objects.requireNonNull(message);
+		long count = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.key.message.equals(message)) {
+				count += entry.count;
+			}
+		}
+		return count;
+	}
+
+	/** Dumps a stack trace anytime the trigger string is printed to System.out. */
+	public void dumpWhenSysOutContains(String trigger) {
+		System.setOut(wrapAndDumpWhenContains(System.out, trigger));
+	}
+
+	/** Dumps a stack trace anytime trigger string is printed to System.err. */
+	public void dumpWhenSysErrContains(String trigger) {
+		System.setErr(wrapAndDumpWhenContains(System.err, trigger));
+	}
+
+	/** Same as {@link StackDumper#wrapAndDumpWhenContains(PrintStream, String)}, but dumps through this dumper. */
+	public PrintStream wrapAndDumpWhenContains(PrintStream source, String trigger) {
+		return wrapAndDumpWhenContainsAny(source, Objects.requireNonNull(trigger));
+	}
+
+	/** Same as {@link StackDumper#wrapAndDumpWhenContainsAny(PrintStream, String...)}, but dumps through this dumper. */
+	public PrintStream wrapAndDumpWhenContainsAny(PrintStream source, String... triggers) {
+		Objects.requireNonNull(source);
+		for (String trigger : triggers) {
+			Objects.requireNonNull(trigger);
+		}
+		return TriggerStream.wrap(source, triggers, (trigger, stack) -> dump("Triggered by " + trigger, stack));
+	}
+
+	/** A message and stack, with the hash of its frames computed once. */
+	private static final class Key {
+		final String message;
+		final List<StackTraceElement> stack;
+		final int hash;
+
+		Key(String message, List<StackTraceElement> stack) {
+			this.message = message;
+			this.stack = stack;
+			this.hash = 31 * message.hashCode() + stack.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof Key) {
+				Key key = (Key) other;
+				return hash == key.hash && message.equals(key.message) && stack.equals(key.stack);
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/** The number of occurrences of a stack, and whether it has been dumped. */
+	private static final class Entry {
+		final Key key;
+		long count = 0;
+		boolean printed = false;
+
+		Entry(Key key) {
+			this.key = key;
+		}
+	}
+}
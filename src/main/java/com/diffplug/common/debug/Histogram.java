@@ -15,18 +15,22 @@
  */
 package com.diffplug.common.debug;
 
-import java.util.Comparator;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+
+import com.diffplug.common.base.Preconditions;
 
 /** Stores histograms of things for measuring performance. */
 public class Histogram<T> {
 	/** Maintains counts for each key. */
-	private ConcurrentHashMap<T, AtomicInteger> map = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<T, Count<T>> map = new ConcurrentHashMap<>();
+	/** The incrementally maintained top values, if {@link #trackTopValues(int)} has been called. */
+	private volatile Ranking<T> ranking;
 
 	/** Increments the given key. */
 	public int increment(T key) {
@@ -36,7 +40,35 @@ public class Histogram<T> {
 	/** Increments the given key by the given amount. */
 	public int add(T key, int count) {
 		Objects.requireNonNull(key);
-		return map.computeIfAbsent(key, u -> new AtomicInteger()).addAndGet(count);
+		Preconditions.checkArgument(count >= 0 || ranking == null, "count must be non-negative after trackTopValues");
+		Count<T> counter = map.computeIfAbsent(key, Count::new);
+		int result = counter.addAndGet(count);
+		// read the ranking after the key is in the map, so that either trackTopValues sees the key, or we see the ranking
+		Ranking<T> ranking = this.ranking;
+		if (ranking != null && !counter.ranked && result > ranking.min) {
+			ranking.offer(counter);
+		}
+		return result;
+	}
+
+	/**
+	 * Maintains the top `numValues` keys incrementally as they are counted, so
+	 * that repeatedly polling {@link #getTopValues(int, Function)} for up to
+	 * `numValues` doesn't have to scan every key.  Can only be called once, and
+	 * afterwards {@link #add(Object, int)} rejects negative counts, because the
+	 * ranking assumes that counts only grow.
+	 */
+	public void trackTopValues(int numValues) {
+		Preconditions.checkArgument(numValues > 0, "numValues must be positive");
+		Ranking<T> ranking = new Ranking<>(numValues);
+		synchronized (this) {
+			Preconditions.checkState(this.ranking == null, "Can only call trackTopValues once");
+			// publish first, so that concurrent increments are offered too
+			this.ranking = ranking;
+		}
+		for (Count<T> counter : map.values()) {
+			ranking.offer(counter);
+		}
 	}
 
 	/** Calls {@link #getTopValues(int, Function)} with {@link Object#toString()} as the `toString` argument. */
@@ -53,39 +85,170 @@ public class Histogram<T> {
 	 */
 	public String getTopValues(int numValues, Function<? super T, String> toString) {
 		Objects.requireNonNull(toString);
-		Comparator<Map.Entry<Integer, String>> byKey = Comparator.comparing(Map.Entry::getKey);
-		Comparator<Map.Entry<Integer, String>> byValue = Comparator.comparing(Map.Entry::getValue);
-		// sort by frequency
-		TreeSet<Map.Entry<Integer, String>> builder = new TreeSet<>(byKey.thenComparing(byValue));
-		for (Map.Entry<T, AtomicInteger> entry : map.entrySet()) {
-			builder.add(ImmutableEntry.create(entry.getValue().get(), toString.apply(entry.getKey())));
+		TopValues<T> topValues = new TopValues<>(numValues, toString);
+		Ranking<T> ranking = this.ranking;
+		Iterable<Count<T>> candidates = map.values();
+		if (ranking != null && numValues <= ranking.ranked.length) {
+			List<Count<T>> snapshot = ranking.snapshot();
+			if (!Ranking.mightTieOutside(snapshot, ranking.ranked.length, numValues)) {
+				candidates = snapshot;
+			}
+		}
+		for (Count<T> counter : candidates) {
+			topValues.offer(counter.count, counter.key);
 		}
+		return topValues.format();
+	}
+
+	/** Passes every key and its count to the given consumer. */
+	void forEach(ObjIntConsumer<T> consumer) {
+		map.forEach((key, counter) -> consumer.accept(key, counter.count));
+	}
+
+	/** The count for a single key. */
+	static final class Count<T> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Count> COUNT = AtomicIntegerFieldUpdater.newUpdater(Count.class, "count");
+
+		final T key;
+		volatile int count;
+		/** True if this count is currently in the {@link Ranking}. */
+		volatile boolean ranked;
+		/** The count as of the last time the ranking's heap was ordered, guarded by the ranking. */
+		int heapCount;
+
+		Count(T key) {
+			this.key = key;
+		}
+
+		@SuppressWarnings("unchecked")
+		int addAndGet(int delta) {
+			return COUNT.addAndGet(this, delta);
+		}
+	}
 
-		// find the length of the longestKey
-		int longestKey = 0;
-		int count = 0;
-		for (Map.Entry<Integer, String> entry : builder.descendingSet()) {
-			if (++count > numValues) {
-				break;
+	/**
+	 * The top counts, which are read live from their {@link Count}.  Every count
+	 * outside the ranking is no bigger than the smallest count inside it, so a
+	 * count only needs to be offered when it grows past {@link #min}.
+	 *
+	 * The ranked counts are a min-heap ordered by {@link Count#heapCount}.  Counts
+	 * only grow, so each live count is at least its heapCount, and the root is the
+	 * true minimum once its heapCount has caught up with its live count.
+	 */
+	static final class Ranking<T> {
+		final Count<T>[] ranked;
+		int size = 0;
+		/** A lower bound on the smallest ranked count, which is only a fast-path filter. */
+		volatile int min = Integer.MIN_VALUE;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Ranking(int capacity) {
+			ranked = new Count[capacity];
+		}
+
+		synchronized void offer(Count<T> counter) {
+			if (counter.ranked) {
+				return;
+			}
+			if (size < ranked.length) {
+				counter.heapCount = counter.count;
+				ranked[size] = counter;
+				siftUp(size++);
+				counter.ranked = true;
+				if (size == ranked.length) {
+					min = refreshMin();
+				}
+				return;
+			}
+			while (true) {
+				int currentMin = refreshMin();
+				if (counter.count <= currentMin) {
+					min = currentMin;
+					return;
+				}
+				Count<T> evicted = ranked[0];
+				evicted.ranked = false;
+				counter.ranked = true;
+				counter.heapCount = counter.count;
+				ranked[0] = counter;
+				siftDown(0);
+				min = refreshMin();
+				// an increment which still saw evicted.ranked won't offer it, so check it here,
+				// after clearing the flag, so that one of us is guaranteed to see the other
+				if (evicted.count <= min) {
+					return;
+				}
+				counter = evicted;
 			}
-			longestKey = Math.max(longestKey, entry.getValue().length());
 		}
 
-		// iterate over the map
-		StringBuilder output = new StringBuilder();
-		count = 0;
-		for (Map.Entry<Integer, String> entry : builder.descendingSet()) {
-			if (++count > numValues) {
-				break;
+		/** Re-sorts the root until its heapCount is its live count, and returns that count. */
+		private int refreshMin() {
+			while (true) {
+				Count<T> root = ranked[0];
+				int live = root.count;
+				if (live == root.heapCount) {
+					return live;
+				}
+				root.heapCount = live;
+				siftDown(0);
 			}
-			output.append(entry.getValue());
-			for (int i = 0; i < longestKey - entry.getValue().length(); ++i) {
-				output.append(' ');
+		}
+
+		private void siftUp(int index) {
+			Count<T> counter = ranked[index];
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (ranked[parent].heapCount <= counter.heapCount) {
+					break;
+				}
+				ranked[index] = ranked[parent];
+				index = parent;
 			}
-			output.append(": ");
-			output.append(Integer.toString(entry.getKey()));
-			output.append("\n");
+			ranked[index] = counter;
+		}
+
+		private void siftDown(int index) {
+			Count<T> counter = ranked[index];
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && ranked[child + 1].heapCount < ranked[child].heapCount) {
+					++child;
+				}
+				if (ranked[child].heapCount >= counter.heapCount) {
+					break;
+				}
+				ranked[index] = ranked[child];
+				index = child;
+			}
+			ranked[index] = counter;
+		}
+
+		/**
+		 * Returns true if a key outside the ranking might tie the `numValues`th largest count
+		 * in the given snapshot, in which case every key must be scanned so that the tie is
+		 * broken the same way as without a ranking.
+		 */
+		static <T> boolean mightTieOutside(List<Count<T>> snapshot, int capacity, int numValues) {
+			if (snapshot.size() < capacity || numValues <= 0) {
+				// every key is in the ranking
+				return false;
+			}
+			int[] counts = new int[snapshot.size()];
+			for (int i = 0; i < counts.length; ++i) {
+				counts[i] = snapshot.get(i).count;
+			}
+			Arrays.sort(counts);
+			// keys outside the ranking are no bigger than its smallest count
+			return counts[counts.length - numValues] <= counts[0];
+		}
+
+		synchronized List<Count<T>> snapshot() {
+			return Arrays.asList(Arrays.copyOf(ranked, size));
 		}
-		return output.toString();
 	}
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/**
+ * A {@link Histogram} of `int` keys, which never boxes.
+ *
+ * Incrementing a key which has already been seen is a lock-free CAS which
+ * allocates nothing.  The first sighting of a key takes a lock, and
+ * occasionally grows the table.  Counts saturate at `Integer.MAX_VALUE`.
+ */
+public class IntHistogram {
+	private final CountTable counts = new CountTable();
+
+	/** Increments the given key. */
+	public int increment(int key) {
+		return counts.add(key, 1);
+	}
+
+	/** Increments the given key by the given non-negative amount. */
+	public int add(int key, int count) {
+		return counts.add(key, count);
+	}
+
+	/** Returns the count for the given key. */
+	public int get(int key) {
+		return counts.get(key);
+	}
+
+	/** Calls {@link #getTopValues(int, IntFunction)} with {@link Integer#toString(int)} as the `toString` argument. */
+	public String getTopValues(int numValues) {
+		return getTopValues(numValues, Integer::toString);
+	}
+
+	/**
+	 * Returns a string which shows the top n values.
+	 *
+	 * If the histogram is still being modified
+	 * when this is called, then it might return
+	 * an inconsistent view (only partly modified).
+	 */
+	public String getTopValues(int numValues, IntFunction<String> toString) {
+		Objects.requireNonNull(toString);
+		return counts.getTopValues(numValues, key -> toString.apply((int) key));
+	}
+}
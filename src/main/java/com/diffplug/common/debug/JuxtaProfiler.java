@@ -15,11 +15,32 @@
  */
 package com.diffplug.common.debug;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.Nullable;
+
+import com.diffplug.common.base.Errors;
+import com.diffplug.common.base.Preconditions;
 import com.diffplug.common.base.Throwing;
 
 /**
@@ -28,6 +49,37 @@ import com.diffplug.common.base.Throwing;
  */
 public class JuxtaProfiler {
 	private List<Test> tests = new ArrayList<>();
+	private List<Benchmark> benchmarks = new ArrayList<>();
+	private boolean trackAllocations = false;
+	private boolean trackCpuTime = false;
+
+	/**
+	 * Records the bytes allocated by each trial (or benchmark operation) and the garbage
+	 * collections which happened during it, and prints them next to the timing stats.
+	 *
+	 * For {@link InitTimedCleanup} only `timed()` is counted, other {@link ITimed} count all of `time()`.
+	 * Allocation is only counted on the thread which runs the test, and requires a JVM which
+	 * supports `com.sun.management.ThreadMXBean.getThreadAllocatedBytes`.  Garbage collections
+	 * are counted across the whole JVM.  Not supported by {@link #runForkedTrials(int, int, int)}.
+	 */
+	public void trackAllocations() {
+		trackAllocations = true;
+	}
+
+	/**
+	 * Records the CPU time of each trial (or benchmark operation), and prints it next to
+	 * the wall time, along with the fraction of wall time that was CPU and the fraction
+	 * of CPU time that was user-mode.  A trial whose CPU time is much less than its wall
+	 * time spent the difference waiting on locks, I/O, or the scheduler.
+	 *
+	 * As with {@link #trackAllocations()}, only the thread which runs the test is measured.
+	 *
+	 * @throws UnsupportedOperationException if this JVM can't measure the CPU time of the current thread
+	 */
+	public void trackCpuTime() {
+		JvmMetrics.checkCpuSupported();
+		trackCpuTime = true;
+	}
 
 	/** Adds the given test to the profiler. */
 	public void addTest(String name, ITimed test) {
@@ -61,6 +113,56 @@ public class JuxtaProfiler {
 		});
 	}
 
+	/**
+	 * Adds a test which can also be run in a child JVM by {@link #runForkedTrials(int, int, int)}.
+	 * The class must be public, with a public no-arg constructor.  It is also instantiated
+	 * in this JVM, so that it can be run by {@link #runRandomTrials(int)}.
+	 */
+	public void addTestForked(String name, Class<? extends ITimed> clazz) {
+		Objects.requireNonNull(clazz);
+		tests.add(new Test(name, Errors.rethrow().get(() -> clazz.getConstructor().newInstance()), clazz));
+	}
+
+	/**
+	 * Runs the tests added with {@link #addTestForked(String, Class)}, each in a fresh child JVM
+	 * with the current classpath, so that the JIT profile of one test can't pollute another.
+	 * Tests which were added as instances rather than classes can't be forked, and are skipped.
+	 *
+	 * Each of the `numForks` rounds starts one child JVM per test, in shuffled order.  The child
+	 * runs `warmupTrials` trials which are thrown away, then `trialsPerFork` trials whose times
+	 * are sent back over its stdout, and merged into the results for that test.  Anything the
+	 * test itself prints to `System.out` is redirected to the child's `System.err`, which is
+	 * inherited from this JVM.
+	 */
+	public void runForkedTrials(int numForks, int warmupTrials, int trialsPerFork) {
+		Preconditions.checkArgument(numForks > 0, "numForks must be positive");
+		Preconditions.checkArgument(warmupTrials >= 0, "warmupTrials must be non-negative");
+		Preconditions.checkArgument(trialsPerFork > 0, "trialsPerFork must be positive");
+		List<Test> forkable = new ArrayList<>();
+		for (Test test : tests) {
+			if (test.forkable == null) {
+				System.out.println("Skipping " + test.name + ", it must be added with addTestForked to run in a child JVM.");
+			} else {
+				forkable.add(test);
+			}
+		}
+		LapTimer timer = LapTimer.createMs();
+		for (int i = 0; i < numForks; ++i) {
+			Collections.shuffle(forkable);
+			System.out.print("Running fork " + (i + 1) + " of " + numForks + " ... ");
+			timer.lap();
+			for (Test test : forkable) {
+				test.runFork(warmupTrials, trialsPerFork);
+			}
+			System.out.println(" complete after " + format(timer.lap()) + ".");
+
+			// print the results after every fork, in case it crashes
+			for (Test test : forkable) {
+				test.printResults(false);
+			}
+		}
+	}
+
 	/**
 	 * Runs the tests added with {@link #addTest(String, ITimed)} `numTrials` times.  Prints the
 	 * progress as it goes, and finally prints the statistics for the entire run.
@@ -70,12 +172,13 @@ public class JuxtaProfiler {
 	public void runRandomTrials(int numTrials) {
 		List<Test> shuffledTests = new ArrayList<>(tests);
 		LapTimer timer = LapTimer.createMs();
+		ClockCalibration.printIfMeasured();
 		for (int i = 0; i < numTrials; ++i) {
 			Collections.shuffle(shuffledTests);
 			System.out.print("Running trial " + (i + 1) + " of " + numTrials + " ... ");
 			timer.lap();
 			for (Test test : shuffledTests) {
-				test.runTrial();
+				test.runTrial(trackAllocations, trackCpuTime);
 			}
 			System.out.println(" complete after " + format(timer.lap()) + ".");
 
@@ -84,10 +187,169 @@ public class JuxtaProfiler {
 		}
 	}
 
+	/**
+	 * Adds an operation to be measured by {@link #runBenchmarks(int, int, double)}.  The operation
+	 * should pass its result to the {@link Blackhole}, so that the JIT can't eliminate it.
+	 */
+	public void addBenchmark(String name, Throwing.Consumer<Blackhole> operation) {
+		benchmarks.add(new Benchmark(name, operation));
+	}
+
+	/**
+	 * Runs the benchmarks added with {@link #addBenchmark(String, Throwing.Consumer)}, then prints
+	 * each one's time per operation with a 99% confidence interval, and whether it is
+	 * significantly different from the fastest (Welch's t-test).
+	 *
+	 * Each benchmark first calibrates how many operations to run per batch, so that a batch
+	 * takes at least `secondsPerIteration`, which makes it possible to measure operations
+	 * which take less than a microsecond.  It then runs `warmupIterations` batches which
+	 * are thrown away.  Finally, it runs `measurementIterations` batches, shuffling the
+	 * order of the benchmarks between each one.
+	 */
+	public void runBenchmarks(int warmupIterations, int measurementIterations, double secondsPerIteration) {
+		Preconditions.checkArgument(warmupIterations >= 0, "warmupIterations must be non-negative");
+		Preconditions.checkArgument(measurementIterations >= 2, "need at least 2 measurementIterations for a confidence interval");
+		Preconditions.checkArgument(secondsPerIteration > 0, "secondsPerIteration must be positive");
+		ClockCalibration.printIfMeasured();
+		for (Benchmark benchmark : benchmarks) {
+			System.out.print("Warming up " + benchmark.name + " ... ");
+			benchmark.calibrate(secondsPerIteration);
+			for (int i = 0; i < warmupIterations; ++i) {
+				benchmark.runBatch();
+			}
+			System.out.println(benchmark.batchSize + " ops per batch.");
+		}
+		List<Benchmark> shuffled = new ArrayList<>(benchmarks);
+		for (int i = 0; i < measurementIterations; ++i) {
+			Collections.shuffle(shuffled);
+			System.out.println("Running iteration " + (i + 1) + " of " + measurementIterations + " ...");
+			for (Benchmark benchmark : shuffled) {
+				benchmark.meter.trackAllocations = trackAllocations;
+				benchmark.meter.trackCpu = trackCpuTime;
+				benchmark.stats.add(benchmark.runBatch(benchmark.meter) / benchmark.batchSize);
+			}
+		}
+		printBenchmarkResults();
+	}
+
+	/** The confidence level for benchmark results. */
+	private static final double CONFIDENCE = 0.99;
+
+	/** Prints the results of the benchmarks. */
+	private void printBenchmarkResults() {
+		if (benchmarks.isEmpty()) {
+			return;
+		}
+		List<RunningStats.Stat> stats = new ArrayList<>();
+		for (Benchmark benchmark : benchmarks) {
+			stats.add(benchmark.stats.getStat());
+		}
+		RunningStats.Stat fastest = stats.stream().min(Comparator.comparingDouble(stat -> stat.mean)).get();
+		for (int i = 0; i < benchmarks.size(); ++i) {
+			RunningStats.Stat stat = stats.get(i);
+			StringBuilder builder = new StringBuilder();
+			builder.append(benchmarks.get(i).name).append(": ");
+			builder.append(formatPerOp(stat.mean)).append(" +/- ").append(formatPerOp(Significance.confidenceHalfWidth(stat, CONFIDENCE)));
+			builder.append(" (99% CI, n=").append(stat.num).append(")");
+			if (stat == fastest) {
+				builder.append(" fastest");
+			} else {
+				double pValue = Significance.welchPValue(stat, fastest);
+				builder.append(String.format(Locale.ROOT, " x%.2f vs fastest, p=%.3g", stat.mean / fastest.mean, pValue));
+				builder.append(pValue < 1 - CONFIDENCE ? " (significant)" : " (not significant)");
+			}
+			if (trackAllocations || trackCpuTime) {
+				builder.append(" ").append(benchmarks.get(i).meter.format("op"));
+			}
+			System.out.println(builder.toString());
+		}
+	}
+
+	/**
+	 * Runs each benchmark added with {@link #addBenchmark(String, Throwing.Consumer)} on 1, 2, 4, ...
+	 * threads at the same time, up to `maxThreads`, then prints each one's throughput and
+	 * its scaling efficiency relative to a single thread (100% is perfectly linear scaling).
+	 *
+	 * Each run starts all of its threads together with a barrier, and lets them run the
+	 * operation as many times as they can for `secondsPerRun`.  The order of the benchmarks
+	 * is shuffled for each thread count.  Before any measurement, each benchmark gets an
+	 * untimed single-thread run of the same length, so that the 1-thread baseline which
+	 * every efficiency is relative to isn't measured on cold, un-JITted code.
+	 */
+	public void runThroughput(int maxThreads, double secondsPerRun) {
+		Preconditions.checkArgument(maxThreads > 0, "maxThreads must be positive");
+		Preconditions.checkArgument(secondsPerRun > 0, "secondsPerRun must be positive");
+		List<Integer> threadCounts = new ArrayList<>();
+		for (int numThreads = 1; numThreads < maxThreads; numThreads *= 2) {
+			threadCounts.add(numThreads);
+		}
+		threadCounts.add(maxThreads);
+
+		List<Benchmark> shuffled = new ArrayList<>(benchmarks);
+		System.out.println("Warming up ...");
+		for (Benchmark benchmark : shuffled) {
+			benchmark.runThroughput(1, secondsPerRun);
+		}
+		double[][] opsPerSec = new double[benchmarks.size()][threadCounts.size()];
+		for (int t = 0; t < threadCounts.size(); ++t) {
+			int numThreads = threadCounts.get(t);
+			Collections.shuffle(shuffled);
+			System.out.println("Running on " + numThreads + " thread" + (numThreads == 1 ? "" : "s") + " ...");
+			for (Benchmark benchmark : shuffled) {
+				opsPerSec[benchmarks.indexOf(benchmark)][t] = benchmark.runThroughput(numThreads, secondsPerRun);
+			}
+		}
+		for (int i = 0; i < benchmarks.size(); ++i) {
+			StringBuilder builder = new StringBuilder();
+			builder.append(benchmarks.get(i).name).append(":");
+			for (int t = 0; t < threadCounts.size(); ++t) {
+				int numThreads = threadCounts.get(t);
+				builder.append(t == 0 ? " " : ", ");
+				builder.append(numThreads).append("T=").append(formatOpsPerSec(opsPerSec[i][t]));
+				if (t > 0) {
+					double efficiency = opsPerSec[i][t] / (numThreads * opsPerSec[i][0]);
+					builder.append(String.format(Locale.ROOT, " (%.0f%%)", efficiency * 100));
+				}
+			}
+			System.out.println(builder.toString());
+		}
+	}
+
+	/** Formats the given throughput, with three significant digits and an appropriate unit. */
+	static String formatOpsPerSec(double opsPerSec) {
+		String[] units = {"", "k", "M", "G"};
+		int unit = 0;
+		while (unit < units.length - 1 && Math.abs(opsPerSec) >= 1000) {
+			opsPerSec /= 1000;
+			++unit;
+		}
+		return String.format(Locale.ROOT, "%.3g %sops/s", opsPerSec, units[unit]);
+	}
+
+	/** Formats the given time per operation, with three significant digits and an appropriate unit. */
+	static String formatPerOp(double seconds) {
+		return RunningStats.formatSignificant(seconds) + "/op";
+	}
+
+	/**
+	 * Returns the stats of every test (seconds per trial) and then every benchmark
+	 * (seconds per operation), for export or comparison against a baseline.
+	 */
+	public ProfileResults getResults() {
+		Map<String, RunningStats.Stat> stats = new LinkedHashMap<>();
+		for (Test test : tests) {
+			stats.put(test.name, test.stats.getStat());
+		}
+		for (Benchmark benchmark : benchmarks) {
+			stats.put(benchmark.name, benchmark.stats.getStat());
+		}
+		return ProfileResults.create(stats);
+	}
+
 	/** Prints the results of the trials. */
 	private void printResults() {
 		for (Test test : tests) {
-			test.printResults();
+			test.printResults(trackAllocations || trackCpuTime);
 		}
 	}
 
@@ -95,14 +357,43 @@ public class JuxtaProfiler {
 	private static class Test {
 		private final String name;
 		private final ITimed underTest;
+		@Nullable
+		private final Class<? extends ITimed> forkable;
 		private final RunningStats stats = new RunningStats();
+		private final JvmMetrics.Meter meter = new JvmMetrics.Meter();
 
 		public Test(String name, ITimed test) {
+			this(name, test, null);
+		}
+
+		public Test(String name, ITimed test, @Nullable Class<? extends ITimed> forkable) {
 			this.name = Objects.requireNonNull(name);
 			this.underTest = Objects.requireNonNull(test);
+			this.forkable = forkable;
+		}
+
+		public void runTrial(boolean trackAllocations, boolean trackCpuTime) {
+			meter.trackAllocations = trackAllocations;
+			meter.trackCpu = trackCpuTime;
+			if (!meter.isTracking()) {
+				runTrial();
+			} else if (underTest instanceof InitTimedCleanup) {
+				// measure only timed()
+				InitTimedCleanup initTimedCleanup = (InitTimedCleanup) underTest;
+				initTimedCleanup.meter = meter;
+				try {
+					runTrial();
+				} finally {
+					initTimedCleanup.meter = null;
+				}
+			} else {
+				meter.start();
+				runTrial();
+				meter.stop(1);
+			}
 		}
 
-		public void runTrial() {
+		private void runTrial() {
 			try {
 				stats.add(underTest.time());
 			} catch (Throwable e) {
@@ -111,11 +402,182 @@ public class JuxtaProfiler {
 			}
 		}
 
-		public void printResults() {
-			System.out.println(name + ": " + stats.getStat());
+		/** Runs the test in a child JVM, and adds the trials it sends back. */
+		public void runFork(int warmupTrials, int trialsPerFork) {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					ForkedTrials.class.getName(), forkable.getName(),
+					Integer.toString(warmupTrials), Integer.toString(trialsPerFork));
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			try {
+				Process process = builder.start();
+				int received = 0;
+				try (DataInputStream input = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+					while (true) {
+						stats.add(input.readDouble());
+						++received;
+					}
+				} catch (EOFException e) {
+					// the child is done
+				}
+				int exitCode = process.waitFor();
+				if (exitCode != 0 || received != trialsPerFork) {
+					System.err.println(name + ": child JVM exited with " + exitCode + " after " + received + " of " + trialsPerFork + " trials.");
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void printResults(boolean tracking) {
+			if (tracking) {
+				RunningStats.Stat stat = stats.getStat();
+				System.out.println(name + ": " + stat + " " + meter.format("trial"));
+			} else {
+				System.out.println(name + ": " + stats.getStat());
+			}
+		}
+	}
+
+	/**
+	 * The entry point for a child JVM started by {@link JuxtaProfiler#runForkedTrials(int, int, int)}.
+	 *
+	 * Arguments are the name of the {@link ITimed} class, the number of warmup trials, and the number
+	 * of measured trials.  Each measured trial is written to stdout as a double, with `NaN` for
+	 * a trial which threw an exception.
+	 */
+	static final class ForkedTrials {
+		private ForkedTrials() {}
+
+		public static void main(String[] args) throws Throwable {
+			if (args.length != 3) {
+				throw new IllegalArgumentException("Expected className, warmupTrials, trialsPerFork, but was " + Arrays.asList(args));
+			}
+			// keep the test's own output from corrupting the samples
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+			System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+
+			ITimed test = Class.forName(args[0]).asSubclass(ITimed.class).getConstructor().newInstance();
+			int warmupTrials = Integer.parseInt(args[1]);
+			int trialsPerFork = Integer.parseInt(args[2]);
+			for (int i = 0; i < warmupTrials + trialsPerFork; ++i) {
+				double time;
+				try {
+					time = test.time();
+				} catch (Throwable e) {
+					time = Double.NaN;
+					e.printStackTrace();
+				}
+				if (i >= warmupTrials) {
+					output.writeDouble(time);
+				}
+			}
+			output.flush();
+		}
+	}
+
+	/** Wraps up a single benchmarked operation. */
+	private static class Benchmark {
+		private final String name;
+		private final Throwing.Consumer<Blackhole> operation;
+		private final Blackhole blackhole = new Blackhole();
+		private final RunningStats stats = new RunningStats();
+		private final JvmMetrics.Meter meter = new JvmMetrics.Meter();
+		private long batchSize = 1;
+
+		public Benchmark(String name, Throwing.Consumer<Blackhole> operation) {
+			this.name = Objects.requireNonNull(name);
+			this.operation = Objects.requireNonNull(operation);
+		}
+
+		/** Doubles the batch size until a batch takes at least the given time. */
+		public void calibrate(double secondsPerIteration) {
+			batchSize = 1;
+			while (runBatch() < secondsPerIteration && batchSize < Long.MAX_VALUE / 2) {
+				batchSize *= 2;
+			}
+		}
+
+		/** Runs the operation on the given number of threads for the given duration, and returns the total ops/sec. */
+		public double runThroughput(int numThreads, double seconds) {
+			CyclicBarrier barrier = new CyclicBarrier(numThreads + 1);
+			long[] opsPerThread = new long[numThreads];
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			ThroughputStop stop = new ThroughputStop();
+			List<Thread> threads = new ArrayList<>(numThreads);
+			for (int i = 0; i < numThreads; ++i) {
+				int index = i;
+				Thread thread = new Thread(() -> {
+					// each thread needs its own blackhole, or they would contend on it
+					Blackhole threadBlackhole = new Blackhole();
+					long ops = 0;
+					try {
+						barrier.await();
+						while (!stop.stopped) {
+							operation.accept(threadBlackhole);
+							++ops;
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+						stop.stopped = true;
+					}
+					opsPerThread[index] = ops;
+				}, name + " throughput " + i);
+				thread.start();
+				threads.add(thread);
+			}
+			try {
+				barrier.await();
+				long start = System.nanoTime();
+				Thread.sleep((long) (seconds * 1000));
+				stop.stopped = true;
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				double elapsed = (System.nanoTime() - start) * 1e-9;
+				if (failure.get() != null) {
+					throw Errors.asRuntime(failure.get());
+				}
+				long totalOps = 0;
+				for (long ops : opsPerThread) {
+					totalOps += ops;
+				}
+				return totalOps / elapsed;
+			} catch (InterruptedException | BrokenBarrierException e) {
+				throw Errors.asRuntime(e);
+			}
+		}
+
+		/** Runs a batch of operations, and returns the elapsed time in seconds. */
+		public double runBatch() {
+			return runBatch(null);
+		}
+
+		/** Runs a batch of operations, recording them per op in the given meter (if any), and returns the elapsed time in seconds. */
+		public double runBatch(@Nullable JvmMetrics.Meter meter) {
+			boolean metered = meter != null && meter.isTracking();
+			return Errors.rethrow().get(() -> {
+				if (metered) {
+					meter.start();
+				}
+				long start = System.nanoTime();
+				for (long i = 0; i < batchSize; ++i) {
+					operation.accept(blackhole);
+				}
+				long elapsed = System.nanoTime() - start;
+				if (metered) {
+					meter.stop(batchSize);
+				}
+				return elapsed * 1e-9;
+			});
 		}
 	}
 
+	/** Signals the threads of a throughput run to stop. */
+	private static class ThroughputStop {
+		volatile boolean stopped = false;
+	}
+
 	/** Formats the given double. */
 	private static String format(double elapsedSec) {
 		int elapsedMs = (int) Math.round(elapsedSec * 1000);
@@ -137,6 +599,9 @@ public class JuxtaProfiler {
 	 */
 	public static abstract class InitTimedCleanup implements ITimed {
 		private final LapTimer timer;
+		/** Set while a trial runs, if {@link JuxtaProfiler#trackAllocations()} or {@link JuxtaProfiler#trackCpuTime()}. */
+		@Nullable
+		JvmMetrics.Meter meter;
 
 		protected InitTimedCleanup(LapTimer timer) {
 			this.timer = Objects.requireNonNull(timer);
@@ -155,9 +620,16 @@ public class JuxtaProfiler {
 		@Override
 		public final double time() throws Throwable {
 			init();
+			JvmMetrics.Meter meter = this.meter;
+			if (meter != null) {
+				meter.start();
+			}
 			timer.lap();
 			timed();
 			double time = timer.lap();
+			if (meter != null) {
+				meter.stop(1);
+			}
 			cleanup();
 			return time;
 		}
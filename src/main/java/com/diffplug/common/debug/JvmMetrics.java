@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads allocation, garbage collection, and thread CPU time counters from the platform MXBeans.
+ *
+ * Each read is a handful of primitive reads, so that taking a reading doesn't
+ * itself allocate (which would be counted against the code being measured).
+ */
+class JvmMetrics {
+	private JvmMetrics() {}
+
+	private static final List<GarbageCollectorMXBean> GCS = ManagementFactory.getGarbageCollectorMXBeans();
+	/** Null if the JVM can't measure per-thread allocation. */
+	private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+	/** Null if the JVM can't measure the CPU time of the current thread. */
+	private static final ThreadMXBean CPU = cpuBean();
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			try {
+				if (sunBean.isThreadAllocatedMemorySupported()) {
+					if (!sunBean.isThreadAllocatedMemoryEnabled()) {
+						sunBean.setThreadAllocatedMemoryEnabled(true);
+					}
+					return sunBean;
+				}
+			} catch (UnsupportedOperationException | SecurityException e) {
+				// fall through to unsupported
+			}
+		}
+		return null;
+	}
+
+	private static ThreadMXBean cpuBean() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			if (bean.isCurrentThreadCpuTimeSupported()) {
+				if (!bean.isThreadCpuTimeEnabled()) {
+					bean.setThreadCpuTimeEnabled(true);
+				}
+				return bean;
+			}
+		} catch (UnsupportedOperationException | SecurityException e) {
+			// fall through to unsupported
+		}
+		return null;
+	}
+
+	/** Returns true if {@link #threadAllocatedBytes()} is supported by this JVM. */
+	static boolean isAllocationSupported() {
+		return ALLOCATION != null;
+	}
+
+	/** Returns the total bytes allocated by the current thread so far, or -1 if unsupported. */
+	static long threadAllocatedBytes() {
+		return ALLOCATION == null ? -1 : ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/** Throws an {@link UnsupportedOperationException} if this JVM can't measure the CPU time of the current thread. */
+	static void checkCpuSupported() {
+		if (CPU == null) {
+			throw new UnsupportedOperationException("This JVM can't measure the CPU time of the current thread");
+		}
+	}
+
+	/** Returns the CPU time (user and system) used by the current thread so far, in nanoseconds. */
+	static long threadCpuNanos() {
+		return CPU.getCurrentThreadCpuTime();
+	}
+
+	/** Returns the user-mode CPU time used by the current thread so far, in nanoseconds. */
+	static long threadUserNanos() {
+		return CPU.getCurrentThreadUserTime();
+	}
+
+	/** Returns the total number of collections so far, across all collectors. */
+	static long gcCount() {
+		long count = 0;
+		for (int i = 0; i < GCS.size(); ++i) {
+			count += Math.max(0, GCS.get(i).getCollectionCount());
+		}
+		return count;
+	}
+
+	/** Returns the total approximate time spent in collections so far, across all collectors, in milliseconds. */
+	static long gcMillis() {
+		long millis = 0;
+		for (int i = 0; i < GCS.size(); ++i) {
+			millis += Math.max(0, GCS.get(i).getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * Formats the given number of bytes with three significant digits, in B, KB, MB, or GB (powers of 1024).
+	 * Switches units at 1000 rather than 1024, so that three digits are always enough.
+	 */
+	static String formatBytes(double bytes) {
+		String[] units = {"B", "KB", "MB", "GB"};
+		int unit = 0;
+		while (unit < units.length - 1 && Math.abs(bytes) >= 1000) {
+			bytes /= 1024;
+			++unit;
+		}
+		return String.format(Locale.ROOT, "%.3g %s", bytes, units[unit]);
+	}
+
+	/**
+	 * Measures the allocation, garbage collection, and CPU time of a series of
+	 * sections of code, each between {@link #start()} and {@link #stop(long)}.  What is
+	 * measured is set by {@link #trackAllocations} and {@link #trackCpu}.
+	 *
+	 * Allocation and CPU time are per-thread, so they are only counted if the same thread
+	 * calls start and stop.  Sections which are stopped on another thread are counted
+	 * separately, and reported as skipped.
+	 */
+	static class Meter {
+		/** Tracks allocation and garbage collection. */
+		boolean trackAllocations;
+		/** Tracks thread CPU time, only set this if {@link #checkCpuSupported()} passes. */
+		boolean trackCpu;
+
+		long numAllocations = 0;
+		double allocatedBytes = 0;
+		long numGc = 0;
+		long gcCount = 0;
+		long gcMillis = 0;
+
+		long numCpu = 0;
+		double cpuNanos = 0;
+		double userNanos = 0;
+		/** The wall time of the sections whose CPU time was measured, so that "% of wall" compares like with like. */
+		double cpuWallNanos = 0;
+
+		/** The number of sections which were stopped on a different thread than they started on. */
+		long numOtherThread = 0;
+
+		private long startThreadId, startGcCount, startGcMillis, startAllocated, startCpuNanos, startUserNanos, startWallNanos;
+
+		/** Returns true if anything is being tracked. */
+		boolean isTracking() {
+			return trackAllocations || trackCpu;
+		}
+
+		/** Starts measuring a section of code. */
+		void start() {
+			startThreadId = Thread.currentThread().getId();
+			if (trackAllocations) {
+				startGcCount = gcCount();
+				startGcMillis = gcMillis();
+				startAllocated = threadAllocatedBytes();
+			}
+			// read the CPU time last, so that the reads above aren't counted
+			if (trackCpu) {
+				startUserNanos = threadUserNanos();
+				startWallNanos = System.nanoTime();
+				startCpuNanos = threadCpuNanos();
+			}
+		}
+
+		/** Stops measuring a section of code, which ran the given number of operations. */
+		void stop(long numOps) {
+			boolean sameThread = startThreadId == Thread.currentThread().getId();
+			long cpu = 0, user = 0, wall = 0, allocated = 0, collections = 0, collectionMillis = 0;
+			if (trackCpu && sameThread) {
+				cpu = threadCpuNanos() - startCpuNanos;
+				wall = System.nanoTime() - startWallNanos;
+				user = threadUserNanos() - startUserNanos;
+			}
+			if (trackAllocations) {
+				if (sameThread) {
+					allocated = threadAllocatedBytes() - startAllocated;
+				}
+				collections = gcCount() - startGcCount;
+				collectionMillis = gcMillis() - startGcMillis;
+			}
+			synchronized (this) {
+				if (!sameThread) {
+					++numOtherThread;
+				}
+				if (trackCpu && sameThread) {
+					++numCpu;
+					cpuNanos += (double) cpu / numOps;
+					userNanos += (double) user / numOps;
+					cpuWallNanos += (double) wall / numOps;
+				}
+				if (trackAllocations) {
+					if (sameThread) {
+						++numAllocations;
+						allocatedBytes += (double) allocated / numOps;
+					}
+					++numGc;
+					gcCount += collections;
+					gcMillis += collectionMillis;
+				}
+			}
+		}
+
+		/**
+		 * Returns e.g. `cpu=1.20 ms/trial (95% of wall, 80% user) alloc=1.50 KB/trial gc=3 (12 ms)`,
+		 * with CPU and allocation as means per measurement, and with only what was tracked.  The
+		 * "% of wall" is against the wall time of the same sections whose CPU time was measured.  If any
+		 * section was stopped on another thread, ends with e.g. `(2 stopped on another thread)`.
+		 */
+		synchronized String format(String per) {
+			StringBuilder builder = new StringBuilder();
+			if (numCpu > 0) {
+				builder.append("cpu=").append(RunningStats.formatSignificant(cpuNanos * 1e-9 / numCpu)).append('/').append(per);
+				builder.append(String.format(Locale.ROOT, " (%.0f%% of wall, %.0f%% user)", cpuWallNanos == 0 ? 0 : 100 * cpuNanos / cpuWallNanos, cpuNanos == 0 ? 0 : 100 * userNanos / cpuNanos));
+			}
+			if (numGc > 0) {
+				builder.append(builder.length() == 0 ? "" : " ");
+				if (isAllocationSupported() && numAllocations > 0) {
+					builder.append("alloc=").append(formatBytes(allocatedBytes / numAllocations)).append('/').append(per).append(' ');
+				}
+				builder.append("gc=").append(gcCount).append(" (").append(gcMillis).append(" ms)");
+			}
+			if (numOtherThread > 0 && builder.length() > 0) {
+				builder.append(" (").append(numOtherThread).append(" stopped on another thread)");
+			}
+			return builder.toString();
+		}
+	}
+}
@@ -47,4 +47,110 @@ public class LapTimer {
 	public static LapTimer createNanoWrap2Sec() {
 		return new LapTimer(System::nanoTime, TimeUnit.NANOSECONDS);
 	}
+
+	/**
+	 * Creates a LapTimer which is accurate to the nanosecond (wraps every ~2 seconds), and which
+	 * reads `System.nanoTime()` directly into a plain field rather than through an `AtomicLong`.
+	 * It must only be used by a single thread.
+	 */
+	public static LapTimer createSingleThreadNanos() {
+		return new SingleThreadNanos(0);
+	}
+
+	/**
+	 * Like {@link #createSingleThreadNanos()}, but subtracts the overhead of reading the clock
+	 * (as measured by {@link ClockCalibration}) from each lap, so that a lap around nothing at
+	 * all is about zero.  Laps are never negative.  It must only be used by a single thread.
+	 */
+	public static LapTimer createCalibratedNanos() {
+		return new SingleThreadNanos(ClockCalibration.get().getOverheadNanos());
+	}
+
+	/**
+	 * Creates a LapTimer which reads a copy of `System.nanoTime()` that a daemon thread updates
+	 * about once per millisecond.  Each lap is only a volatile read, but it is only accurate to
+	 * about a millisecond.  Useful for timing things which take many milliseconds in code which
+	 * is too hot to read the real clock.
+	 */
+	public static LapTimer createCachedMs() {
+		return new LapTimer(CachedClock::nanoTime, TimeUnit.NANOSECONDS);
+	}
+
+	/** A LapTimer which reads `System.nanoTime()` without atomics, and subtracts a fixed overhead. */
+	private static final class SingleThreadNanos extends LapTimer {
+		private final long overheadNanos;
+		private long last;
+
+		SingleThreadNanos(double overheadNanos) {
+			super(System::nanoTime, TimeUnit.NANOSECONDS);
+			this.overheadNanos = Math.round(overheadNanos);
+			this.last = start.get();
+		}
+
+		@Override
+		public double lap() {
+			long now = System.nanoTime();
+			long elapsed = now - last;
+			last = now;
+			return Math.max(0, elapsed - overheadNanos) * FACTOR;
+		}
+	}
+
+	/**
+	 * Creates a LapTimer which measures the CPU time (user and system) used by the thread
+	 * which calls lap(), so it doesn't count time spent blocked or descheduled.  The
+	 * resolution depends on the OS, and is often much coarser than a nanosecond.
+	 *
+	 * Each thread has its own CPU clock, so each thread has its own lap start, and the
+	 * first lap on each thread is zero.
+	 *
+	 * @throws UnsupportedOperationException if this JVM can't measure the CPU time of the current thread
+	 */
+	public static LapTimer createCpuNanos() {
+		JvmMetrics.checkCpuSupported();
+		return new ThreadCpu(JvmMetrics::threadCpuNanos);
+	}
+
+	/**
+	 * Creates a LapTimer which measures the user-mode CPU time used by the thread which calls lap(),
+	 * with a lap start per thread like {@link #createCpuNanos()}.
+	 *
+	 * @throws UnsupportedOperationException if this JVM can't measure the CPU time of the current thread
+	 */
+	public static LapTimer createUserNanos() {
+		JvmMetrics.checkCpuSupported();
+		return new ThreadCpu(JvmMetrics::threadUserNanos);
+	}
+
+	/**
+	 * Creates a LapTimer which measures the system-mode (kernel) CPU time used by the thread which calls lap(),
+	 * with a lap start per thread like {@link #createCpuNanos()}.  It is the difference of two clocks which
+	 * are read separately, so it is clamped to never go backwards.
+	 *
+	 * @throws UnsupportedOperationException if this JVM can't measure the CPU time of the current thread
+	 */
+	public static LapTimer createSystemNanos() {
+		JvmMetrics.checkCpuSupported();
+		return new ThreadCpu(() -> Math.max(0, JvmMetrics.threadCpuNanos() - JvmMetrics.threadUserNanos()));
+	}
+
+	/** A LapTimer for a per-thread clock, which keeps a separate lap start for each thread. */
+	private static final class ThreadCpu extends LapTimer {
+		private final ThreadLocal<long[]> last;
+
+		ThreadCpu(LongSupplier threadClock) {
+			super(threadClock, TimeUnit.NANOSECONDS);
+			this.last = ThreadLocal.withInitial(() -> new long[]{threadClock.getAsLong()});
+		}
+
+		@Override
+		public double lap() {
+			long[] last = this.last.get();
+			long now = tickFunction.getAsLong();
+			// the system clock is a difference of two reads, so don't let it go backwards
+			long elapsed = Math.max(0, now - last[0]);
+			last[0] = Math.max(last[0], now);
+			return elapsed * FACTOR;
+		}
+	}
 }
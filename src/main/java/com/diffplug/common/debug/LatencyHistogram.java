@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * Records latencies into fixed log-linear buckets, in the style of HdrHistogram.
+ *
+ * Every recorded value is kept to `significantDigits` of precision, recording is a
+ * single atomic array increment with no allocation, and the memory is fixed up front
+ * by `highestTrackableNanos` and `significantDigits`.  Unlike {@link RunningStats},
+ * the cost of a query doesn't grow with the number of samples.
+ *
+ * ```java
+ * LatencyHistogram histogram = LatencyHistogram.create(3);
+ * LapTimer timer = LapTimer.createNanoWrap2Sec();
+ * ...
+ * timer.lap();
+ * handleRequest();
+ * histogram.recordLap(timer);
+ * ...
+ * System.out.println(histogram.getStat().toStringPercentiles(TimeUnit.MICROSECONDS));
+ * ```
+ */
+public class LatencyHistogram {
+	final long highestTrackableNanos;
+	final int significantDigits;
+
+	private final int subBucketCount;
+	private final int subBucketHalfCount;
+	private final int subBucketHalfCountMagnitude;
+	private final long subBucketMask;
+	private final int leadingZeroCountBase;
+
+	final AtomicLongArray counts;
+
+	/** Creates a histogram which tracks values from 1ns to `highestTrackableNanos` with the given number of significant digits (1 to 5). */
+	public LatencyHistogram(long highestTrackableNanos, int significantDigits) {
+		Preconditions.checkArgument(significantDigits >= 1 && significantDigits <= 5, "significantDigits must be 1 to 5");
+		Preconditions.checkArgument(highestTrackableNanos >= 2, "highestTrackableNanos must be at least 2");
+		this.highestTrackableNanos = highestTrackableNanos;
+		this.significantDigits = significantDigits;
+
+		long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+		int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+		subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+		subBucketCount = 1 << subBucketCountMagnitude;
+		subBucketHalfCount = subBucketCount / 2;
+		subBucketMask = subBucketCount - 1;
+		leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+
+		// each bucket covers twice the range of the previous
+		long smallestUntrackableValue = subBucketCount;
+		int bucketCount = 1;
+		while (smallestUntrackableValue <= highestTrackableNanos) {
+			if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+				++bucketCount;
+				break;
+			}
+			smallestUntrackableValue <<= 1;
+			++bucketCount;
+		}
+		counts = new AtomicLongArray((bucketCount + 1) * subBucketHalfCount);
+	}
+
+	/** Creates a histogram which tracks values from 1ns to 1 hour with the given number of significant digits (1 to 5). */
+	public static LatencyHistogram create(int significantDigits) {
+		return new LatencyHistogram(TimeUnit.HOURS.toNanos(1), significantDigits);
+	}
+
+	/** Records the given value in nanoseconds.  Values outside of the trackable range are clamped to it. */
+	public void recordNanos(long nanos) {
+		long clamped = Math.max(0, Math.min(nanos, highestTrackableNanos));
+		counts.incrementAndGet(countsIndex(clamped));
+	}
+
+	/** Records the given elapsed time in seconds, which is what {@link LapTimer#lap()} returns. */
+	public void record(double elapsedSec) {
+		recordNanos((long) (elapsedSec * 1e9));
+	}
+
+	/** Records the result of {@link LapTimer#lap()}. */
+	public void recordLap(LapTimer timer) {
+		record(timer.lap());
+	}
+
+	/////////////////////////
+	// log-linear indexing //
+	/////////////////////////
+	private int bucketIndex(long value) {
+		return leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+	}
+
+	private int countsIndex(long value) {
+		int bucketIndex = bucketIndex(value);
+		int subBucketIndex = (int) (value >>> bucketIndex);
+		int bucketBaseIndex = (bucketIndex + 1) << subBucketHalfCountMagnitude;
+		return bucketBaseIndex + subBucketIndex - subBucketHalfCount;
+	}
+
+	/** Returns the lowest value which lands in the given index. */
+	private long lowestValueAt(int index) {
+		int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+		int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+		if (bucketIndex < 0) {
+			subBucketIndex -= subBucketHalfCount;
+			bucketIndex = 0;
+		}
+		return ((long) subBucketIndex) << bucketIndex;
+	}
+
+	/** Returns the highest value which lands in the given index. */
+	private long highestValueAt(int index) {
+		long lowest = lowestValueAt(index);
+		int bucketIndex = bucketIndex(lowest);
+		int subBucketIndex = (int) (lowest >>> bucketIndex);
+		int adjustedBucket = subBucketIndex >= subBucketCount ? bucketIndex + 1 : bucketIndex;
+		return lowest + (1L << adjustedBucket) - 1;
+	}
+
+	/////////////
+	// queries //
+	/////////////
+	/** Returns the total number of recorded values. */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/** Returns the given quantile (0 to 1) in seconds, as the highest value which is equivalent to the sample at that rank. */
+	public double getQuantile(double quantile) {
+		return quantileNanos(quantile, getCount()) * 1e-9;
+	}
+
+	private long quantileNanos(double quantile, long count) {
+		long countAtQuantile = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, quantile)) * count));
+		long soFar = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			soFar += counts.get(i);
+			if (soFar >= countAtQuantile) {
+				return highestValueAt(i);
+			}
+		}
+		return 0;
+	}
+
+	/** Returns the stats (in seconds) at this time, where every value is accurate to `significantDigits`. */
+	public RunningStats.Stat getStat() {
+		long count = 0;
+		double total = 0;
+		double totalSquared = 0;
+		int first = -1;
+		int last = -1;
+		for (int i = 0; i < counts.length(); ++i) {
+			long countAt = counts.get(i);
+			if (countAt > 0) {
+				if (first == -1) {
+					first = i;
+				}
+				last = i;
+				count += countAt;
+				double value = 0.5 * (lowestValueAt(i) + highestValueAt(i));
+				total += countAt * value;
+				totalSquared += countAt * value * value;
+			}
+		}
+		if (count == 0) {
+			return new RunningStats.Stat(0);
+		}
+		double mean = total / count;
+		double variance = count == 1 ? 0 : Math.max(0, (totalSquared - count * mean * mean) / (count - 1));
+		return new RunningStats.Stat(
+				lowestValueAt(first) * 1e-9,
+				highestValueAt(last) * 1e-9,
+				mean * 1e-9,
+				Math.sqrt(variance) * 1e-9,
+				quantileNanos(0.5, count) * 1e-9,
+				quantileNanos(0.9, count) * 1e-9,
+				quantileNanos(0.99, count) * 1e-9,
+				quantileNanos(0.999, count) * 1e-9,
+				total * 1e-9,
+				(int) Math.min(count, Integer.MAX_VALUE),
+				0);
+	}
+
+	////////////////////////
+	// snapshot and merge //
+	////////////////////////
+	/** Returns a copy of this histogram at this instant. */
+	public LatencyHistogram snapshot() {
+		LatencyHistogram snapshot = new LatencyHistogram(highestTrackableNanos, significantDigits);
+		snapshot.addAll(this);
+		return snapshot;
+	}
+
+	/** Adds all of the counts of the given histogram, which must have the same `highestTrackableNanos` and `significantDigits`. */
+	public void addAll(LatencyHistogram other) {
+		Objects.requireNonNull(other);
+		Preconditions.checkArgument(other.highestTrackableNanos == highestTrackableNanos && other.significantDigits == significantDigits,
+				"Can only combine histograms with the same highestTrackableNanos and significantDigits");
+		for (int i = 0; i < counts.length(); ++i) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+	}
+
+	///////////////////
+	// serialization //
+	///////////////////
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Returns a compact serialized form of this histogram.  Each count is a zig-zag varint,
+	 * and runs of empty buckets are a single negative varint of the run's length.
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Varints.write(output, FORMAT_VERSION);
+		Varints.write(output, significantDigits);
+		Varints.write(output, highestTrackableNanos);
+		int last = counts.length() - 1;
+		while (last >= 0 && counts.get(last) == 0) {
+			--last;
+		}
+		int zeroRun = 0;
+		for (int i = 0; i <= last; ++i) {
+			long count = counts.get(i);
+			if (count == 0) {
+				++zeroRun;
+			} else {
+				if (zeroRun > 0) {
+					Varints.write(output, Varints.zigZag(-zeroRun));
+					zeroRun = 0;
+				}
+				Varints.write(output, Varints.zigZag(count));
+			}
+		}
+		return output.toByteArray();
+	}
+
+	/** Parses the output of {@link #toBytes()}. */
+	public static LatencyHistogram fromBytes(byte[] bytes) {
+		Objects.requireNonNull(bytes);
+		int[] position = new int[1];
+		Preconditions.checkArgument(Varints.read(bytes, position) == FORMAT_VERSION, "Unknown format");
+		int significantDigits = (int) Varints.read(bytes, position);
+		long highestTrackableNanos = Varints.read(bytes, position);
+		LatencyHistogram histogram = new LatencyHistogram(highestTrackableNanos, significantDigits);
+		int index = 0;
+		while (position[0] < bytes.length) {
+			long value = Varints.unZigZag(Varints.read(bytes, position));
+			if (value < 0) {
+				index += (int) -value;
+			} else {
+				Preconditions.checkArgument(index < histogram.counts.length(), "Too many counts");
+				histogram.counts.set(index, value);
+				++index;
+			}
+		}
+		return histogram;
+	}
+
+	@Override
+	public String toString() {
+		return getStat().toStringPercentiles(TimeUnit.MICROSECONDS) + " num=" + getCount();
+	}
+}
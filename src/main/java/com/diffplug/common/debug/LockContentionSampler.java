@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.diffplug.common.base.Preconditions;
+import com.diffplug.common.base.StringPrinter;
+
+/**
+ * A portable lock profiler, for when JFR isn't available.  Periodically samples every
+ * thread with {@link ThreadMXBean#getThreadInfo(long[], boolean, boolean)}, and
+ * estimates how long threads spend on each lock, and what the owner of the lock was
+ * doing in the meantime.
+ *
+ * ```java
+ * LockContentionSampler sampler = LockContentionSampler.create(5, TimeUnit.MILLISECONDS);
+ * sampler.start();
+ * [run the slow thing]
+ * sampler.stop();
+ * System.out.println(sampler.format(10));
+ * sampler.dumpTopOwners(5);
+ * ```
+ *
+ * A thread is contending for a lock if it is `BLOCKED` on a monitor, or if it is
+ * parked on a `java.util.concurrent` lock which another thread owns.  Threads which
+ * are waiting on a lock which nobody owns (such as an idle pool waiting for work)
+ * are counted separately, so that they don't drown out the contention.  Every sample
+ * counts as the time since the previous sample, which is longer than the interval
+ * whenever sampling falls behind, so times are estimates.
+ *
+ * Each lock's name includes its identity hash, so a program with many lock instances
+ * could see an unbounded number of locks and owner stacks.  Only the top
+ * {@link #MAX_LOCKS} of each are kept, in a {@link TopKHistogram}.
+ */
+public class LockContentionSampler implements AutoCloseable {
+	/** The most locks (and lock owners) which are kept, see {@link TopKHistogram}. */
+	public static final int MAX_LOCKS = 1024;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final int ownerStackLimit;
+	private final PeriodicSampler sampler;
+
+	private final AtomicLong numSamples = new AtomicLong();
+	/** The total time which has been sampled, and how much of it has been credited in whole ms.  Only touched by the sampling thread. */
+	private long sampledNanos, creditedMs;
+	private final TopKHistogram<Thread.State> states = new TopKHistogram<>(Thread.State.values().length);
+	private final TopKHistogram<String> contendedMs = new TopKHistogram<>(MAX_LOCKS);
+	private final TopKHistogram<String> waitingMs = new TopKHistogram<>(MAX_LOCKS);
+	private final TopKHistogram<Owner> contendedByOwnerMs = new TopKHistogram<>(MAX_LOCKS);
+
+	private LockContentionSampler(long interval, TimeUnit unit, int ownerStackLimit) {
+		long intervalNanos = unit.toNanos(interval);
+		Preconditions.checkArgument(intervalNanos >= TimeUnit.MILLISECONDS.toNanos(1), "interval must be at least 1ms");
+		Preconditions.checkArgument(ownerStackLimit > 0, "ownerStackLimit must be positive");
+		this.ownerStackLimit = ownerStackLimit;
+		this.sampler = new PeriodicSampler("LockContentionSampler", intervalNanos, (self, nanosSinceLastSample) -> sample(self.getId(), nanosSinceLastSample));
+	}
+
+	/** Creates a sampler which samples every thread once per interval, and keeps the top 8 frames of each lock owner's stack. */
+	public static LockContentionSampler create(long interval, TimeUnit unit) {
+		return create(interval, unit, 8);
+	}
+
+	/** Creates a sampler which samples every thread once per interval, and keeps the top `ownerStackLimit` frames of each lock owner's stack. */
+	public static LockContentionSampler create(long interval, TimeUnit unit, int ownerStackLimit) {
+		return new LockContentionSampler(interval, Objects.requireNonNull(unit), ownerStackLimit);
+	}
+
+	/** Starts sampling on a daemon thread. */
+	public void start() {
+		sampler.start();
+	}
+
+	/** Stops sampling, and waits for the sampling thread to finish. */
+	public void stop() {
+		sampler.stop();
+	}
+
+	/** Same as {@link #stop()}. */
+	@Override
+	public void close() {
+		stop();
+	}
+
+	/** Takes a single sample of every thread except the given one, crediting each lock with the time since the previous sample. */
+	void sample(long selfId, long nanosSinceLastSample) {
+		// carry the fraction of a ms over to the next sample, so that short intervals don't get truncated
+		sampledNanos += nanosSinceLastSample;
+		long ms = TimeUnit.NANOSECONDS.toMillis(sampledNanos) - creditedMs;
+		creditedMs += ms;
+		ThreadInfo[] infos = threads.getThreadInfo(threads.getAllThreadIds(), threads.isObjectMonitorUsageSupported(), threads.isSynchronizerUsageSupported());
+		Map<Long, ThreadInfo> byId = new HashMap<>(infos.length * 2);
+		for (ThreadInfo info : infos) {
+			if (info != null) {
+				byId.put(info.getThreadId(), info);
+			}
+		}
+		for (ThreadInfo info : infos) {
+			if (info == null || info.getThreadId() == selfId) {
+				continue;
+			}
+			Thread.State state = info.getThreadState();
+			states.increment(state);
+			LockInfo lock = info.getLockInfo();
+			if (lock == null || state == Thread.State.RUNNABLE) {
+				continue;
+			}
+			String lockName = lock.toString();
+			ThreadInfo owner = byId.get(info.getLockOwnerId());
+			if (state == Thread.State.BLOCKED || owner != null) {
+				contendedMs.add(lockName, ms);
+				if (owner != null) {
+					contendedByOwnerMs.add(Owner.of(lockName, lock, owner, ownerStackLimit), ms);
+				}
+			} else {
+				waitingMs.add(lockName, ms);
+			}
+		}
+		numSamples.incrementAndGet();
+	}
+
+	/** Returns the number of times that every thread has been sampled. */
+	public long getNumSamples() {
+		return numSamples.get();
+	}
+
+	/** Returns the number of samples in each thread state, followed by the `numLocks` most contended and most waited-on locks. */
+	public String format(int numLocks) {
+		return StringPrinter.buildString(printer -> {
+			printer.println("Thread states (samples):");
+			printer.print(states.getTopValues(Thread.State.values().length));
+			printer.println("Contended locks (ms):");
+			printer.print(contendedMs.getTopValues(numLocks));
+			printer.println("Waited-on locks without an owner (ms):");
+			printer.print(waitingMs.getTopValues(numLocks));
+		});
+	}
+
+	/**
+	 * Dumps the `numStacks` lock owner stacks which other threads spent the most time
+	 * contending with to the system error console, in the same style as {@link StackDumper}.
+	 */
+	public void dumpTopOwners(int numStacks) {
+		List<Map.Entry<Owner, Long>> entries = new ArrayList<>();
+		contendedByOwnerMs.forEach((owner, ms) -> entries.add(ImmutableEntry.create(owner, ms)));
+		entries.sort(Comparator.comparing((Map.Entry<Owner, Long> entry) -> entry.getValue()).reversed());
+		for (Map.Entry<Owner, Long> entry : entries.subList(0, Math.min(numStacks, entries.size()))) {
+			Owner owner = entry.getKey();
+			String lockedAt = owner.lockedAt == null ? "" : " (locked " + StackDumper.stackTraceToString(Collections.singletonList(owner.lockedAt)).trim() + ")";
+			StackDumper.printEmphasized(entry.getValue() + "ms contending for " + owner.lockName + lockedAt + ", while the owner was\n" + StackDumper.stackTraceToString(owner.stack));
+		}
+	}
+
+	/** A lock, and the top of its owner's stack. */
+	static final class Owner {
+		final String lockName;
+		@Nullable
+		final StackTraceElement lockedAt;
+		final List<StackTraceElement> stack;
+
+		private Owner(String lockName, @Nullable StackTraceElement lockedAt, List<StackTraceElement> stack) {
+			this.lockName = lockName;
+			this.lockedAt = lockedAt;
+			this.stack = stack;
+		}
+
+		static Owner of(String lockName, LockInfo lock, ThreadInfo owner, int stackLimit) {
+			StackTraceElement[] stack = owner.getStackTrace();
+			StackTraceElement lockedAt = null;
+			for (MonitorInfo monitor : owner.getLockedMonitors()) {
+				if (monitor.getIdentityHashCode() == lock.getIdentityHashCode() && monitor.getClassName().equals(lock.getClassName())) {
+					lockedAt = monitor.getLockedStackFrame();
+					break;
+				}
+			}
+			return new Owner(lockName, lockedAt, Arrays.asList(Arrays.copyOf(stack, Math.min(stackLimit, stack.length))));
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof Owner) {
+				Owner owner = (Owner) other;
+				return lockName.equals(owner.lockName) && Objects.equals(lockedAt, owner.lockedAt) && stack.equals(owner.stack);
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(lockName, lockedAt, stack);
+		}
+	}
+}
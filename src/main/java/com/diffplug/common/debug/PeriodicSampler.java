@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * Calls a sampling function once per interval on a daemon thread, which is shared by
+ * {@link SamplingProfiler} and {@link LockContentionSampler}.  The sampling function
+ * is passed the sampling thread, so that it can leave itself out of the sample, and
+ * the time since the previous sample, which is longer than the interval whenever a
+ * sample takes longer than the interval.
+ */
+final class PeriodicSampler implements AutoCloseable {
+	private final String name;
+	private final long intervalNanos;
+	private final Sample sample;
+
+	@Nullable
+	private volatile Thread sampler;
+
+	/** Takes a single sample. */
+	interface Sample {
+		void sample(Thread self, long nanosSinceLastSample);
+	}
+
+	PeriodicSampler(String name, long intervalNanos, Sample sample) {
+		Preconditions.checkArgument(intervalNanos > 0, "interval must be positive");
+		this.name = Objects.requireNonNull(name);
+		this.intervalNanos = intervalNanos;
+		this.sample = Objects.requireNonNull(sample);
+	}
+
+	/** Starts sampling on a daemon thread. */
+	synchronized void start() {
+		Preconditions.checkState(sampler == null, "Already started");
+		Thread thread = new Thread(this::sampleLoop, name);
+		thread.setDaemon(true);
+		sampler = thread;
+		thread.start();
+	}
+
+	/** Stops sampling, and waits for the sampling thread to finish. */
+	void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = sampler;
+			sampler = null;
+		}
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Same as {@link #stop()}. */
+	@Override
+	public void close() {
+		stop();
+	}
+
+	private void sampleLoop() {
+		Thread self = Thread.currentThread();
+		long next = System.nanoTime();
+		long last = next;
+		while (true) {
+			next += intervalNanos;
+			long now = System.nanoTime();
+			if (next - now <= 0) {
+				// we fell behind, so don't try to catch up
+				next = now;
+			} else {
+				// park until the deadline, since a spurious wakeup or an unpark from stop() can return early
+				while (next - now > 0 && sampler == self) {
+					LockSupport.parkNanos(next - now);
+					now = System.nanoTime();
+				}
+			}
+			if (sampler != self) {
+				return;
+			}
+			sample.sample(self, now - last);
+			last = now;
+		}
+	}
+}
@@ -22,14 +22,14 @@ import com.diffplug.common.base.Unhandled;
 
 /** Logs things with timestamps (either absolute or delta since last log statement). */
 public class ProfileLogger {
-	private long epoch = System.currentTimeMillis();
+	long epoch = System.currentTimeMillis();
 
 	public enum Mode {
 		EPOCH, DELTA, OFF
 	}
 
-	private final StringPrinter printer;
-	private Mode mode;
+	final StringPrinter printer;
+	Mode mode;
 
 	public ProfileLogger(StringPrinter printer, Mode mode) {
 		this.printer = Objects.requireNonNull(printer);
@@ -40,19 +40,24 @@ public class ProfileLogger {
 		this.mode = Objects.requireNonNull(mode);
 	}
 
+	/** Formats a log statement. */
+	static String format(long elapsedMs, String txt) {
+		return String.format("%04d ms %s", elapsedMs, txt);
+	}
+
 	/** Logs the given statement. */
 	public void log(String txt) {
 		Objects.requireNonNull(txt);
 		switch (mode) {
 		case EPOCH:
 			long elapsed = System.currentTimeMillis() - epoch;
-			printer.println(String.format("%04d ms %s", elapsed, txt));
+			printer.println(format(elapsed, txt));
 			break;
 		case DELTA:
 			long newEpoch = System.currentTimeMillis();
 			elapsed = newEpoch - epoch;
 			epoch = newEpoch;
-			printer.println(String.format("%04d ms %s", elapsed, txt));
+			printer.println(format(elapsed, txt));
 			break;
 		case OFF:
 			break;
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * The {@link RunningStats.Stat} of every test or step from a profiler run, along with
+ * metadata about the environment it ran in.  Can be exported as JSON or CSV, and
+ * the CSV can be read back in as a baseline for {@link #findRegressions(ProfileResults, double)}.
+ *
+ * ```java
+ * ProfileResults results = profiler.getResults();
+ * ProfileResults baseline = ProfileResults.fromCsv(new String(Files.readAllBytes(baselineFile), UTF_8));
+ * results.assertNoRegressions(baseline, 0.05);
+ * ```
+ */
+public final class ProfileResults {
+	private final Map<String, String> environment;
+	private final Map<String, RunningStats.Stat> stats;
+
+	private ProfileResults(Map<String, String> environment, Map<String, RunningStats.Stat> stats) {
+		this.environment = Collections.unmodifiableMap(environment);
+		this.stats = Collections.unmodifiableMap(stats);
+	}
+
+	/** Creates results for the given stats (in the given order), with metadata about the current environment. */
+	public static ProfileResults create(Map<String, RunningStats.Stat> stats) {
+		Objects.requireNonNull(stats);
+		Map<String, String> environment = new LinkedHashMap<>();
+		environment.put("timestamp", Instant.now().toString());
+		for (String property : new String[]{"java.version", "java.vm.name", "os.name", "os.arch"}) {
+			environment.put(property, System.getProperty(property, ""));
+		}
+		environment.put("availableProcessors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+		environment.put("maxMemory", Long.toString(Runtime.getRuntime().maxMemory()));
+		return new ProfileResults(environment, new LinkedHashMap<>(stats));
+	}
+
+	/** Metadata about the environment these results were recorded in, e.g. `java.version` and `availableProcessors`. */
+	public Map<String, String> getEnvironment() {
+		return environment;
+	}
+
+	/** The stats for each test or step, in order. */
+	public Map<String, RunningStats.Stat> getStats() {
+		return stats;
+	}
+
+	/** Returns these results as a JSON object, with `NaN` stats written as `null`. */
+	public String toJson() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("{\n  \"environment\": {");
+		boolean first = true;
+		for (Map.Entry<String, String> entry : environment.entrySet()) {
+			builder.append(first ? "\n" : ",\n");
+			builder.append("    ").append(jsonString(entry.getKey())).append(": ").append(jsonString(entry.getValue()));
+			first = false;
+		}
+		builder.append("\n  },\n  \"stats\": {");
+		first = true;
+		for (Map.Entry<String, RunningStats.Stat> entry : stats.entrySet()) {
+			builder.append(first ? "\n" : ",\n");
+			builder.append("    ").append(jsonString(entry.getKey())).append(": {");
+			double[] values = values(entry.getValue());
+			for (int i = 0; i < COLUMNS.length; ++i) {
+				builder.append(i == 0 ? "" : ", ");
+				builder.append('"').append(COLUMNS[i]).append("\": ");
+				builder.append(Double.isFinite(values[i]) ? formatNumber(values[i]) : "null");
+			}
+			builder.append("}");
+			first = false;
+		}
+		builder.append("\n  }\n}\n");
+		return builder.toString();
+	}
+
+	/**
+	 * Returns these results as CSV, with a header row and one row per test.  The environment
+	 * is written as `# key=value` comment lines before the header.  Names and values which
+	 * contain a quote or a line break are quoted, so they can span lines.
+	 */
+	public String toCsv() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, String> entry : environment.entrySet()) {
+			builder.append("# ").append(entry.getKey()).append('=').append(csvEnvironmentValue(entry.getValue())).append('\n');
+		}
+		builder.append("name");
+		for (String column : COLUMNS) {
+			builder.append(',').append(column);
+		}
+		builder.append('\n');
+		for (Map.Entry<String, RunningStats.Stat> entry : stats.entrySet()) {
+			builder.append(csvString(entry.getKey()));
+			for (double value : values(entry.getValue())) {
+				builder.append(',').append(formatNumber(value));
+			}
+			builder.append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parses results which were written by {@link #toCsv()}.  Only the comment lines before
+	 * the header are environment, so a test whose name starts with `# ` is still a test.
+	 *
+	 * @throws IllegalArgumentException if the header isn't exactly the columns which
+	 *         {@link #toCsv()} writes, e.g. because the CSV is from an older format
+	 */
+	public static ProfileResults fromCsv(String csv) {
+		Objects.requireNonNull(csv);
+		Map<String, String> environment = new LinkedHashMap<>();
+		Map<String, RunningStats.Stat> stats = new LinkedHashMap<>();
+		boolean sawHeader = false;
+		for (String line : splitCsvRecords(csv)) {
+			if (line.isEmpty()) {
+				continue;
+			} else if (!sawHeader && line.startsWith("# ")) {
+				int equals = line.indexOf('=');
+				Preconditions.checkArgument(equals > 0, "Malformed environment line: %s", line);
+				String value = line.substring(equals + 1);
+				if (value.startsWith("\"")) {
+					List<String> unquoted = parseCsvLine(value);
+					Preconditions.checkArgument(unquoted.size() == 1, "Malformed environment line: %s", line);
+					value = unquoted.get(0);
+				}
+				environment.put(line.substring(2, equals), value);
+			} else if (!sawHeader) {
+				List<String> expected = new ArrayList<>();
+				expected.add("name");
+				expected.addAll(Arrays.asList(COLUMNS));
+				Preconditions.checkArgument(parseCsvLine(line).equals(expected), "Expected header %s, but was: %s", String.join(",", expected), line);
+				sawHeader = true;
+			} else {
+				List<String> fields = parseCsvLine(line);
+				Preconditions.checkArgument(fields.size() == COLUMNS.length + 1, "Expected %s columns: %s", COLUMNS.length + 1, line);
+				double[] values = new double[COLUMNS.length];
+				for (int i = 0; i < COLUMNS.length; ++i) {
+					values[i] = Double.parseDouble(fields.get(i + 1));
+				}
+				stats.put(fields.get(0), stat(values));
+			}
+		}
+		return new ProfileResults(environment, stats);
+	}
+
+	/**
+	 * Returns every test which is slower than the same test in the baseline by more than
+	 * `threshold` (e.g. 0.05 for 5%), where the slowdown is also statistically significant
+	 * at the 99% level (Welch's t-test).  If either side has no standard deviation (e.g. a
+	 * single sample), a slowdown beyond the threshold is reported on its own.
+	 *
+	 * Tests which aren't in both results are ignored.
+	 */
+	public List<Regression> findRegressions(ProfileResults baseline, double threshold) {
+		Objects.requireNonNull(baseline);
+		Preconditions.checkArgument(threshold >= 0, "threshold must be non-negative");
+		List<Regression> regressions = new ArrayList<>();
+		for (Map.Entry<String, RunningStats.Stat> entry : stats.entrySet()) {
+			RunningStats.Stat base = baseline.stats.get(entry.getKey());
+			RunningStats.Stat current = entry.getValue();
+			if (base == null || base.num == 0 || current.num == 0) {
+				continue;
+			}
+			if (current.mean > base.mean * (1 + threshold)) {
+				double pValue = Significance.welchPValue(current, base);
+				if (!(pValue >= REGRESSION_P_VALUE)) {
+					regressions.add(new Regression(entry.getKey(), base, current, pValue));
+				}
+			}
+		}
+		return regressions;
+	}
+
+	/** Throws an {@link AssertionError} listing every regression from {@link #findRegressions(ProfileResults, double)}, if there are any. */
+	public void assertNoRegressions(ProfileResults baseline, double threshold) {
+		List<Regression> regressions = findRegressions(baseline, threshold);
+		if (!regressions.isEmpty()) {
+			StringBuilder builder = new StringBuilder();
+			builder.append(regressions.size()).append(" regression").append(regressions.size() == 1 ? "" : "s").append(":");
+			for (Regression regression : regressions) {
+				builder.append("\n  ").append(regression);
+			}
+			throw new AssertionError(builder.toString());
+		}
+	}
+
+	/** A test which got significantly slower than its baseline. */
+	public static final class Regression {
+		public final String name;
+		public final RunningStats.Stat baseline, current;
+		/** The p-value of Welch's t-test, or NaN if it couldn't be computed. */
+		public final double pValue;
+
+		private Regression(String name, RunningStats.Stat baseline, RunningStats.Stat current, double pValue) {
+			this.name = name;
+			this.baseline = baseline;
+			this.current = current;
+			this.pValue = pValue;
+		}
+
+		/** The ratio of the current mean to the baseline mean. */
+		public double slowdown() {
+			return current.mean / baseline.mean;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%s: mean %s vs baseline %s (x%.2f, p=%.3g)", name,
+					RunningStats.formatSignificant(current.mean), RunningStats.formatSignificant(baseline.mean),
+					slowdown(), pValue);
+		}
+	}
+
+	/** A slowdown must have a p-value below this to be significant. */
+	private static final double REGRESSION_P_VALUE = 0.01;
+
+	/** The columns for each stat, in seconds. */
+	private static final String[] COLUMNS = {"num", "numNanOrInfinite", "mean", "stddev", "min", "median", "p90", "p99", "p999", "max", "total"};
+
+	private static double[] values(RunningStats.Stat stat) {
+		return new double[]{stat.num, stat.numNanOrInfinite, stat.mean, stat.stddev, stat.min, stat.median, stat.p90, stat.p99, stat.p999, stat.max, stat.total};
+	}
+
+	private static RunningStats.Stat stat(double[] v) {
+		return new RunningStats.Stat(v[4], v[9], v[2], v[3], v[5], v[6], v[7], v[8], v[10], (int) v[0], (int) v[1]);
+	}
+
+	/** Formats integers without a decimal point, and everything else so that it round-trips exactly. */
+	private static String formatNumber(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		} else {
+			return Double.toString(value);
+		}
+	}
+
+	static String jsonString(String value) {
+		StringBuilder builder = new StringBuilder(value.length() + 2);
+		builder.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if (c < 0x20) {
+				builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.append('"').toString();
+	}
+
+	private static String csvString(String value) {
+		return value.indexOf(',') >= 0 ? csvQuote(value) : csvEnvironmentValue(value);
+	}
+
+	/** Environment values can contain commas, since they are the rest of a comment line, but quotes and line breaks must be quoted. */
+	private static String csvEnvironmentValue(String value) {
+		if (value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+			return csvQuote(value);
+		} else {
+			return value;
+		}
+	}
+
+	private static String csvQuote(String value) {
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	/** Splits the given CSV into records at line breaks which aren't inside quotes. */
+	private static List<String> splitCsvRecords(String csv) {
+		List<String> records = new ArrayList<>();
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i < csv.length(); ++i) {
+			char c = csv.charAt(i);
+			if (c == '"') {
+				// an escaped quote toggles twice, which leaves it unchanged
+				quoted = !quoted;
+			} else if (c == '\n' && !quoted) {
+				int end = i > start && csv.charAt(i - 1) == '\r' ? i - 1 : i;
+				records.add(csv.substring(start, end));
+				start = i + 1;
+			}
+		}
+		if (start < csv.length()) {
+			records.add(csv.substring(start));
+		}
+		return records;
+	}
+
+	private static List<String> parseCsvLine(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); ++i) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					++i;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Arrays;
+
+import com.diffplug.common.primitives.Doubles;
+
+/** Stores the finite samples of a {@link RunningStats} so that quantiles can be computed. */
+interface QuantileEstimator {
+	/** Adds a finite sample. */
+	void add(double sample);
+
+	/** Adds all of the samples from the given estimator, which must be of the same kind as this one. */
+	void addAll(QuantileEstimator other);
+
+	/** Returns the given quantile (0 to 1).  Only valid if at least one sample has been added. */
+	double quantile(double quantile);
+
+	/** Returns a copy of this estimator. */
+	QuantileEstimator copy();
+
+	/** Stores every sample, and sorts them lazily to compute exact quantiles. */
+	static class Exact implements QuantileEstimator {
+		double[] samples = new double[16];
+		int num = 0;
+		boolean sorted = true;
+
+		@Override
+		public void add(double sample) {
+			samples = Doubles.ensureCapacity(samples, num + 1, samples.length);
+			samples[num] = sample;
+			++num;
+			sorted = false;
+		}
+
+		@Override
+		public void addAll(QuantileEstimator other) {
+			Exact exact = (Exact) other;
+			samples = Doubles.ensureCapacity(samples, num + exact.num, samples.length);
+			System.arraycopy(exact.samples, 0, samples, num, exact.num);
+			num += exact.num;
+			sorted = false;
+		}
+
+		/** Linearly interpolates between the closest ranks, so that the 0.5 quantile is the conventional median. */
+		@Override
+		public double quantile(double quantile) {
+			if (!sorted) {
+				Arrays.sort(samples, 0, num);
+				sorted = true;
+			}
+			double position = quantile * (num - 1);
+			int below = (int) Math.floor(position);
+			int above = (int) Math.ceil(position);
+			if (below == above) {
+				return samples[below];
+			} else {
+				return samples[below] * (above - position) + samples[above] * (position - below);
+			}
+		}
+
+		@Override
+		public Exact copy() {
+			Exact copy = new Exact();
+			copy.samples = Arrays.copyOf(samples, Math.max(num, 16));
+			copy.num = num;
+			copy.sorted = sorted;
+			return copy;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Arrays;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * Estimates quantiles in a fixed amount of memory by counting samples in
+ * logarithmically-sized buckets (the same approach as DDSketch).
+ *
+ * Every quantile is within `relativeAccuracy * |quantile|` of the true
+ * sample with that rank, so long as the samples of each sign span fewer
+ * than `maxBuckets` buckets.  If they span more, the buckets closest to
+ * zero are collapsed together, so that accuracy is lost for the smallest
+ * magnitudes rather than in the tail.  With 1% accuracy, 2048 buckets
+ * span about 17 orders of magnitude.
+ */
+final class QuantileSketch implements QuantileEstimator {
+	static final int DEFAULT_MAX_BUCKETS = 2048;
+
+	final double relativeAccuracy;
+	private final double gamma;
+	private final double logGamma;
+
+	final Store positive;
+	final Store negative;
+	long numZero = 0;
+
+	QuantileSketch(double relativeAccuracy, int maxBuckets) {
+		Preconditions.checkArgument(relativeAccuracy > 0 && relativeAccuracy < 1, "relativeAccuracy must be between 0 and 1");
+		Preconditions.checkArgument(maxBuckets > 0, "maxBuckets must be positive");
+		this.relativeAccuracy = relativeAccuracy;
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(gamma);
+		this.positive = new Store(maxBuckets);
+		this.negative = new Store(maxBuckets);
+	}
+
+	private QuantileSketch(QuantileSketch toCopy) {
+		this.relativeAccuracy = toCopy.relativeAccuracy;
+		this.gamma = toCopy.gamma;
+		this.logGamma = toCopy.logGamma;
+		this.positive = toCopy.positive.copy();
+		this.negative = toCopy.negative.copy();
+		this.numZero = toCopy.numZero;
+	}
+
+	/** Returns the index of the bucket which holds the given positive magnitude. */
+	private int index(double magnitude) {
+		return (int) Math.ceil(Math.log(magnitude) / logGamma);
+	}
+
+	/** Returns the magnitude which is within relativeAccuracy of everything in the given bucket. */
+	private double value(int index) {
+		return 2 * Math.pow(gamma, index) / (gamma + 1);
+	}
+
+	@Override
+	public void add(double sample) {
+		if (sample >= Double.MIN_NORMAL) {
+			positive.add(index(sample), 1);
+		} else if (sample <= -Double.MIN_NORMAL) {
+			negative.add(index(-sample), 1);
+		} else {
+			++numZero;
+		}
+	}
+
+	@Override
+	public void addAll(QuantileEstimator other) {
+		QuantileSketch sketch = (QuantileSketch) other;
+		Preconditions.checkArgument(sketch.gamma == gamma, "Can only combine sketches with the same relativeAccuracy");
+		positive.addAll(sketch.positive);
+		negative.addAll(sketch.negative);
+		numZero += sketch.numZero;
+	}
+
+	/** Returns the bucket which holds the sample at rank `floor(quantile * (count - 1))`, so there is no interpolation between samples. */
+	@Override
+	public double quantile(double quantile) {
+		double rank = quantile * (negative.count + numZero + positive.count - 1);
+		long soFar = 0;
+		// the most negative samples are in the highest negative buckets
+		for (int i = negative.counts.length - 1; i >= 0; --i) {
+			soFar += negative.counts[i];
+			if (soFar > rank) {
+				return -value(negative.offset + i);
+			}
+		}
+		soFar += numZero;
+		if (soFar > rank) {
+			return 0;
+		}
+		for (int i = 0; i < positive.counts.length; ++i) {
+			soFar += positive.counts[i];
+			if (soFar > rank) {
+				return value(positive.offset + i);
+			}
+		}
+		// only possible due to rounding in the rank, so it must be the largest sample
+		for (int i = positive.counts.length - 1; i >= 0; --i) {
+			if (positive.counts[i] > 0) {
+				return value(positive.offset + i);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public QuantileSketch copy() {
+		return new QuantileSketch(this);
+	}
+
+	/** Counts for a contiguous range of bucket indices, which grows as needed up to maxBuckets. */
+	static final class Store {
+		private static final int INITIAL_BUCKETS = 64;
+
+		final int maxBuckets;
+		long[] counts = new long[0];
+		int offset;
+		long count;
+
+		Store(int maxBuckets) {
+			this.maxBuckets = maxBuckets;
+		}
+
+		/** Adds n to the bucket at the given index. */
+		void add(int index, long n) {
+			if (counts.length == 0) {
+				counts = new long[Math.min(INITIAL_BUCKETS, maxBuckets)];
+				offset = index - counts.length / 2;
+			} else if (index >= offset + counts.length || (index < offset && counts.length < maxBuckets)) {
+				extendRange(index);
+			}
+			// anything below the range has been collapsed into the lowest bucket
+			counts[Math.max(index - offset, 0)] += n;
+			count += n;
+		}
+
+		/** Reallocates the counts so that they cover the given index, collapsing the lowest buckets if we've hit maxBuckets. */
+		private void extendRange(int index) {
+			int low = Math.min(index, offset);
+			int high = Math.max(index, offset + counts.length - 1);
+			long span = (long) high - low + 1;
+			int newLength = (int) Math.min(maxBuckets, Math.max(span, 2L * counts.length));
+			int newOffset;
+			if (span <= maxBuckets && index > offset) {
+				// growing upward, so leave the spare room at the top
+				newOffset = low;
+			} else {
+				// growing downward (leave spare room at the bottom), or collapsing the lowest buckets
+				newOffset = high - newLength + 1;
+			}
+			long[] newCounts = new long[newLength];
+			for (int i = 0; i < counts.length; ++i) {
+				newCounts[Math.max(offset + i - newOffset, 0)] += counts[i];
+			}
+			counts = newCounts;
+			offset = newOffset;
+		}
+
+		void addAll(Store other) {
+			for (int i = 0; i < other.counts.length; ++i) {
+				if (other.counts[i] != 0) {
+					add(other.offset + i, other.counts[i]);
+				}
+			}
+		}
+
+		Store copy() {
+			Store copy = new Store(maxBuckets);
+			copy.counts = Arrays.copyOf(counts, counts.length);
+			copy.offset = offset;
+			copy.count = count;
+			return copy;
+		}
+	}
+}
@@ -15,28 +15,58 @@
  */
 package com.diffplug.common.debug;
 
-import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import com.diffplug.common.base.Unhandled;
-import com.diffplug.common.primitives.Doubles;
 
-/** Calculates the running mean/median/min/max of a sampled signal. */
+/** Calculates the running mean/median/min/max/standard deviation of a sampled signal. */
 public class RunningStats {
-	double[] samples = new double[16];
+	final QuantileEstimator quantiles;
 	int num = 0;
 
 	double min = Double.POSITIVE_INFINITY;
 	double max = Double.NEGATIVE_INFINITY;
 	double total = 0;
+	/** Sum of squared deviations from the mean, updated with Welford's method. */
+	double sumSquaredDeviations = 0;
 	int numNanOrInfinite = 0;
 
+	/** Creates a RunningStats which stores every sample, so that its median and percentiles are exact. */
+	public RunningStats() {
+		this(new QuantileEstimator.Exact());
+	}
+
+	RunningStats(QuantileEstimator quantiles) {
+		this.quantiles = quantiles;
+	}
+
+	/**
+	 * Creates a RunningStats which uses a fixed amount of memory no matter how many
+	 * samples it sees, and whose `add` is O(1).  The median and percentiles are
+	 * within `relativeAccuracy` (e.g. 0.01 for 1%) of the true value.
+	 *
+	 * Useful for stats which stay on in long-running processes.
+	 */
+	public static RunningStats createStreaming(double relativeAccuracy) {
+		return new RunningStats(new QuantileSketch(relativeAccuracy, QuantileSketch.DEFAULT_MAX_BUCKETS));
+	}
+
+	/** Returns a factory for {@link #createStreaming(double)}, which fails fast on a bad `relativeAccuracy` rather than on first use. */
+	static Supplier<RunningStats> streamingFactory(double relativeAccuracy) {
+		createStreaming(relativeAccuracy);
+		return () -> createStreaming(relativeAccuracy);
+	}
+
 	/** Adds the given sample to the running stats. */
 	public synchronized void add(double sample) {
 		if (Double.isFinite(sample)) {
-			samples = Doubles.ensureCapacity(samples, num + 1, samples.length);
-			samples[num] = sample;
+			quantiles.add(sample);
+			double oldMean = num == 0 ? 0 : total / num;
 			total += sample;
+			sumSquaredDeviations += (sample - oldMean) * (sample - total / (num + 1));
 			if (sample < min) {
 				min = sample;
 			}
@@ -49,38 +79,80 @@ public class RunningStats {
 		}
 	}
 
+	/** Adds all of the samples from the given stats, which must have been created the same way as this one (exact or streaming). */
+	public void addAll(RunningStats other) {
+		Objects.requireNonNull(other);
+		QuantileEstimator otherQuantiles;
+		int otherNum, otherNumNanOrInfinite;
+		double otherMin, otherMax, otherTotal, otherSumSquaredDeviations;
+		// copy first so that we never hold both locks at once
+		synchronized (other) {
+			otherQuantiles = other.quantiles.copy();
+			otherNum = other.num;
+			otherNumNanOrInfinite = other.numNanOrInfinite;
+			otherMin = other.min;
+			otherMax = other.max;
+			otherTotal = other.total;
+			otherSumSquaredDeviations = other.sumSquaredDeviations;
+		}
+		synchronized (this) {
+			if (num > 0 && otherNum > 0) {
+				// Chan's method for combining the squared deviations
+				double delta = otherTotal / otherNum - total / num;
+				sumSquaredDeviations += delta * delta * num * otherNum / (num + otherNum);
+			}
+			sumSquaredDeviations += otherSumSquaredDeviations;
+			quantiles.addAll(otherQuantiles);
+			num += otherNum;
+			numNanOrInfinite += otherNumNanOrInfinite;
+			min = Math.min(min, otherMin);
+			max = Math.max(max, otherMax);
+			total += otherTotal;
+		}
+	}
+
 	/** Returns these stats at this time. */
 	public synchronized Stat getStat() {
 		if (num == 0) {
 			return new Stat(numNanOrInfinite);
 		} else {
 			double mean = total / num;
-			Arrays.sort(samples, 0, num);
-			int middle = Math.floorDiv(num, 2);
-			double median;
-			if (num % 2 == 0) {
-				median = (samples[middle - 1] + samples[middle]) / 2.0;
-			} else {
-				median = samples[middle];
-			}
-			return new Stat(min, max, mean, median, total, num, numNanOrInfinite);
+			double stddev = num == 1 ? 0 : Math.sqrt(sumSquaredDeviations / (num - 1));
+			double median = quantile(0.5);
+			return new Stat(min, max, mean, stddev, median, quantile(0.9), quantile(0.99), quantile(0.999), total, num, numNanOrInfinite);
 		}
 	}
 
+	/** Returns the given quantile, clamped to the actual min and max (an approximate quantile might not be). */
+	private double quantile(double quantile) {
+		return Math.max(min, Math.min(max, quantiles.quantile(quantile)));
+	}
+
 	/** The stats at a given instant. */
 	public static class Stat {
 		public final double min, max, mean, median, total;
+		/** The sample standard deviation. */
+		public final double stddev;
+		public final double p90, p99, p999;
 		public final int num, numNanOrInfinite;
 
 		public Stat(int numNanOrInfinite) {
-			this(0, 0, 0, 0, 0, 0, numNanOrInfinite);
+			this(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, numNanOrInfinite);
 		}
 
 		public Stat(double min, double max, double mean, double median, double total, int num, int numNanOrInfinite) {
+			this(min, max, mean, Double.NaN, median, Double.NaN, Double.NaN, Double.NaN, total, num, numNanOrInfinite);
+		}
+
+		public Stat(double min, double max, double mean, double stddev, double median, double p90, double p99, double p999, double total, int num, int numNanOrInfinite) {
 			this.min = min;
 			this.max = max;
 			this.mean = mean;
+			this.stddev = stddev;
 			this.median = median;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
 			this.total = total;
 			this.num = num;
 			this.numNanOrInfinite = numNanOrInfinite;
@@ -100,8 +172,11 @@ public class RunningStats {
 				}
 			} else {
 				StringBuilder builder = new StringBuilder(256);
-				builder.append("median=").append(formatUnit(median, unit));
-				builder.append(" mean=").append(formatUnit(mean, unit));
+				// the median is NaN if it wasn't tracked
+				if (!Double.isNaN(median)) {
+					builder.append("median=").append(formatUnit(median, unit)).append(" ");
+				}
+				builder.append("mean=").append(formatUnit(mean, unit));
 				builder.append(" min=").append(formatUnit(min, unit));
 				builder.append(" max=").append(formatUnit(max, unit));
 				builder.append(" num=").append(num);
@@ -111,6 +186,20 @@ public class RunningStats {
 				return builder.toString();
 			}
 		}
+
+		/** Returns the median, 90th, 99th, and 99.9th percentiles. */
+		public String toStringPercentiles(TimeUnit unit) {
+			if (num == 0) {
+				return toString(unit);
+			} else {
+				StringBuilder builder = new StringBuilder(128);
+				builder.append("p50=").append(formatUnit(median, unit));
+				builder.append(" p90=").append(formatUnit(p90, unit));
+				builder.append(" p99=").append(formatUnit(p99, unit));
+				builder.append(" p999=").append(formatUnit(p999, unit));
+				return builder.toString();
+			}
+		}
 	}
 
 	/** Formats the given elapsed time in seconds with the given precision. */
@@ -120,6 +209,17 @@ public class RunningStats {
 		return Integer.toString(elapsedUnits) + units(precision);
 	}
 
+	/** Formats the given time with three significant digits, in whichever of s, ms, us, or ns is appropriate. */
+	static String formatSignificant(double elapsedSec) {
+		TimeUnit[] units = {TimeUnit.SECONDS, TimeUnit.MILLISECONDS, TimeUnit.MICROSECONDS, TimeUnit.NANOSECONDS};
+		int unit = 0;
+		while (unit < units.length - 1 && Math.abs(elapsedSec) < 1) {
+			elapsedSec *= 1000;
+			++unit;
+		}
+		return String.format(Locale.ROOT, "%.3g %s", elapsedSec, units(units[unit]));
+	}
+
 	private static String units(TimeUnit unit) {
 		switch (unit) {
 		case NANOSECONDS:
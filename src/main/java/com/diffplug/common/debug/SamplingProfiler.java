@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.diffplug.common.base.Preconditions;
+import com.diffplug.common.base.StringPrinter;
+
+/**
+ * Finds hot code by periodically sampling the stacks of every thread (or of a single
+ * thread), and folding them into a tree of `Class.method` frames with counts.
+ *
+ * ```java
+ * SamplingProfiler profiler = SamplingProfiler.allThreads(10, TimeUnit.MILLISECONDS, "java.", "sun.");
+ * profiler.start();
+ * [run the slow thing]
+ * profiler.stop();
+ * Files.write(path, profiler.toCollapsedStacks().getBytes(UTF_8)); // feed to flamegraph.pl or speedscope
+ * ```
+ *
+ * Only threads which are `RUNNABLE` are sampled, so that idle threads don't drown out
+ * the hot code.  Frames whose class starts with any of `classPrefixesToExclude` are
+ * left out, the same as {@link StackDumper#dump(String, int, String...)}.  A sample
+ * whose frames are all excluded is counted under {@link #ALL_EXCLUDED}.
+ */
+public class SamplingProfiler implements AutoCloseable {
+	/** The frame which a sample is counted under if all of its frames are excluded. */
+	public static final String ALL_EXCLUDED = "(all frames excluded)";
+
+	@Nullable
+	private final Thread target;
+	private final String[] classPrefixesToExclude;
+	/** Guarded by itself. */
+	private final Node root = new Node("");
+	private long numSamples = 0;
+	private final PeriodicSampler sampler;
+
+	private SamplingProfiler(@Nullable Thread target, long interval, TimeUnit unit, String[] classPrefixesToExclude) {
+		Objects.requireNonNull(unit);
+		for (String prefix : classPrefixesToExclude) {
+			Objects.requireNonNull(prefix);
+		}
+		long intervalNanos = unit.toNanos(interval);
+		Preconditions.checkArgument(intervalNanos > 0, "interval must be positive");
+		this.target = target;
+		this.classPrefixesToExclude = classPrefixesToExclude.clone();
+		this.sampler = new PeriodicSampler("SamplingProfiler", intervalNanos, (self, nanosSinceLastSample) -> sample(self));
+	}
+
+	/** Creates a profiler which samples every thread (except its own) once per interval. */
+	public static SamplingProfiler allThreads(long interval, TimeUnit unit, String... classPrefixesToExclude) {
+		return new SamplingProfiler(null, interval, unit, classPrefixesToExclude);
+	}
+
+	/** Creates a profiler which samples the given thread once per interval. */
+	public static SamplingProfiler thread(Thread target, long interval, TimeUnit unit, String... classPrefixesToExclude) {
+		return new SamplingProfiler(Objects.requireNonNull(target), interval, unit, classPrefixesToExclude);
+	}
+
+	/** Starts sampling on a daemon thread. */
+	public void start() {
+		sampler.start();
+	}
+
+	/** Stops sampling, and waits for the sampling thread to finish. */
+	public void stop() {
+		sampler.stop();
+	}
+
+	/** Same as {@link #stop()}. */
+	@Override
+	public void close() {
+		stop();
+	}
+
+	/** Takes a single sample. */
+	void sample(Thread self) {
+		if (target != null) {
+			if (target.getState() == Thread.State.RUNNABLE) {
+				add(target.getStackTrace());
+			}
+		} else {
+			for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+				if (entry.getKey() != self && entry.getKey().getState() == Thread.State.RUNNABLE) {
+					add(entry.getValue());
+				}
+			}
+		}
+	}
+
+	/** Folds the given stack (top frame first) into the tree. */
+	private void add(StackTraceElement[] stack) {
+		if (stack.length == 0) {
+			return;
+		}
+		synchronized (root) {
+			++numSamples;
+			Node node = root;
+			for (int i = stack.length - 1; i >= 0; --i) {
+				StackTraceElement frame = stack[i];
+				if (!StackDumper.isExcluded(frame, classPrefixesToExclude)) {
+					node = node.child(frame.getClassName() + "." + frame.getMethodName());
+				}
+			}
+			if (node == root) {
+				node = root.child(ALL_EXCLUDED);
+			}
+			++node.selfCount;
+		}
+	}
+
+	/** Returns the number of stacks which have been sampled. */
+	public long getNumSamples() {
+		synchronized (root) {
+			return numSamples;
+		}
+	}
+
+	/**
+	 * Returns the samples in the "collapsed stack" format used by `flamegraph.pl` and
+	 * speedscope: one line per distinct stack, from the root frame to the leaf frame,
+	 * separated by `;`, followed by the number of samples whose top frame was the leaf.
+	 */
+	public String toCollapsedStacks() {
+		List<String> lines = new ArrayList<>();
+		synchronized (root) {
+			for (Node child : root.children.values()) {
+				collapse(lines, child, "");
+			}
+		}
+		return StringPrinter.buildString(printer -> lines.forEach(printer::println));
+	}
+
+	private static void collapse(List<String> lines, Node node, String prefix) {
+		String stack = prefix + node.frame;
+		if (node.selfCount > 0) {
+			lines.add(stack + " " + node.selfCount);
+		}
+		for (Node child : node.children.values()) {
+			collapse(lines, child, stack + ";");
+		}
+	}
+
+	/** A frame in the tree of samples. */
+	private static class Node {
+		final String frame;
+		final Map<String, Node> children = new HashMap<>();
+		long selfCount = 0;
+
+		Node(String frame) {
+			this.frame = frame;
+		}
+
+		Node child(String frame) {
+			return children.computeIfAbsent(frame, Node::new);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import com.diffplug.common.base.Preconditions;
+import com.diffplug.common.base.StringPrinter;
+
+/**
+ * Profiles nested scopes of code, with a separate call tree for each thread.
+ *
+ * Example usage:
+ *
+ * ```java
+ * public static final ScopeProfiler profiler = new ScopeProfiler();
+ * ...
+ * public void handleRequest() {
+ *     try (ScopeProfiler.Scope parse = profiler.enter("parse")) {
+ *         ...
+ *         try (ScopeProfiler.Scope lex = profiler.enter("lex")) {
+ *             ...
+ *         }
+ *     }
+ * }
+ * ...
+ * profiler.printResults();
+ * ```
+ *
+ * Entering a scope which has been entered before from the same place on the same
+ * thread doesn't allocate or lock, so it's cheap enough to leave on in production.
+ * The results merge every thread's tree, and are only approximate while threads
+ * are still recording.  Once a thread has died, its tree is merged into a single
+ * retired tree, so a thread-per-task server only keeps a tree per live thread.
+ */
+public class ScopeProfiler {
+	final Queue<Root> roots = new ConcurrentLinkedQueue<>();
+	/** The merged trees of dead threads, whose lock also guards moving trees into it. */
+	private final Node retired = new Node("", null, null);
+	private final ThreadLocal<Node[]> current = ThreadLocal.withInitial(() -> {
+		retireDeadRoots();
+		Node[] threadCurrent = new Node[1];
+		threadCurrent[0] = new Node("", null, threadCurrent);
+		roots.add(new Root(Thread.currentThread(), threadCurrent[0]));
+		return threadCurrent;
+	});
+
+	/** Merges the trees of dead threads into {@link #retired}. */
+	private void retireDeadRoots() {
+		synchronized (retired) {
+			Iterator<Root> iterator = roots.iterator();
+			while (iterator.hasNext()) {
+				Root root = iterator.next();
+				if (!root.isAlive()) {
+					iterator.remove();
+					retired.mergeFrom(root.node);
+				}
+			}
+		}
+	}
+
+	/** Enters the given scope, nested inside whichever scope this thread is currently in. */
+	public Scope enter(String name) {
+		Objects.requireNonNull(name);
+		Node[] threadCurrent = current.get();
+		Node child = threadCurrent[0].child(name);
+		threadCurrent[0] = child;
+		child.startNanos = System.nanoTime();
+		return child;
+	}
+
+	/** A scope which has been entered, and must be closed by the same thread in the reverse order of entering. */
+	public interface Scope extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * A node in one thread's call tree, which is also the scope for each time it is entered.
+	 *
+	 * Only the owning thread writes a node.  It publishes each change by writing
+	 * {@link #numChildren} or {@link #count} last, and other threads read those first,
+	 * so they never see a child slot or a min/max which hasn't been written yet.
+	 */
+	static final class Node implements Scope {
+		private static final Node[] NO_CHILDREN = new Node[0];
+		private static final AtomicIntegerFieldUpdater<Node> NUM_CHILDREN = AtomicIntegerFieldUpdater.newUpdater(Node.class, "numChildren");
+		private static final AtomicLongFieldUpdater<Node> COUNT = AtomicLongFieldUpdater.newUpdater(Node.class, "count");
+
+		final String name;
+		final Node parent;
+		Node[] children = NO_CHILDREN;
+		volatile int numChildren = 0;
+
+		/** The owning thread's pointer to its current node. */
+		final Node[] threadCurrent;
+		long startNanos;
+
+		volatile long count = 0;
+		long totalNanos = 0;
+		long minNanos = Long.MAX_VALUE;
+		long maxNanos = Long.MIN_VALUE;
+
+		Node(String name, Node parent, Node[] threadCurrent) {
+			this.name = name;
+			this.parent = parent;
+			this.threadCurrent = threadCurrent;
+		}
+
+		/** Returns the child with the given name, creating it if necessary. */
+		Node child(String name) {
+			for (int i = 0; i < numChildren; ++i) {
+				Node child = children[i];
+				if (child.name == name || child.name.equals(name)) {
+					return child;
+				}
+			}
+			if (numChildren == children.length) {
+				children = Arrays.copyOf(children, Math.max(4, 2 * numChildren));
+			}
+			Node child = new Node(name, this, threadCurrent);
+			children[numChildren] = child;
+			// lazySet is enough to publish the slot (and the array) to readers, without a full fence
+			NUM_CHILDREN.lazySet(this, numChildren + 1);
+			return child;
+		}
+
+		@Override
+		public void close() {
+			long elapsed = System.nanoTime() - startNanos;
+			Preconditions.checkState(threadCurrent[0] == this, "Scopes must be closed by the thread which entered them, in the reverse order of entering");
+			totalNanos += elapsed;
+			minNanos = Math.min(minNanos, elapsed);
+			maxNanos = Math.max(maxNanos, elapsed);
+			COUNT.lazySet(this, count + 1);
+			threadCurrent[0] = parent;
+		}
+
+		/** Adds the stats of the given node (and its children) into this merged node. */
+		void mergeFrom(Node other) {
+			// read the published count before the stats, so that a nonzero count implies a real min and max
+			long otherCount = other.count;
+			if (otherCount > 0) {
+				count += otherCount;
+				totalNanos += other.totalNanos;
+				minNanos = Math.min(minNanos, other.minNanos);
+				maxNanos = Math.max(maxNanos, other.maxNanos);
+			}
+			// read the published numChildren before the array, so that every slot we read has been filled
+			int otherNumChildren = other.numChildren;
+			Node[] otherChildren = other.children;
+			for (int i = 0; i < otherNumChildren; ++i) {
+				Node otherChild = otherChildren[i];
+				child(otherChild.name).mergeFrom(otherChild);
+			}
+		}
+
+		long childNanos() {
+			long childNanos = 0;
+			for (int i = 0; i < numChildren; ++i) {
+				childNanos += children[i].totalNanos;
+			}
+			return childNanos;
+		}
+	}
+
+	/** A thread's call tree, which doesn't keep the thread alive. */
+	static final class Root {
+		private final WeakReference<Thread> owner;
+		final Node node;
+
+		Root(Thread owner, Node node) {
+			this.owner = new WeakReference<>(owner);
+			this.node = node;
+		}
+
+		boolean isAlive() {
+			Thread thread = owner.get();
+			return thread != null && thread.isAlive();
+		}
+	}
+
+	/** Returns the call trees of every thread, merged together. */
+	Node merged() {
+		Node merged = new Node("", null, null);
+		synchronized (retired) {
+			merged.mergeFrom(retired);
+			for (Root root : roots) {
+				merged.mergeFrom(root.node);
+			}
+		}
+		merged.totalNanos = merged.childNanos();
+		return merged;
+	}
+
+	/**
+	 * Prints the merged call tree, with the percentage of all time spent in each
+	 * scope, along with mean/min/max per scope.
+	 */
+	public void printResults() {
+		Node merged = merged();
+		System.out.println("------------------");
+		System.out.println("Total elapsed: " + RunningStats.formatUnit(merged.totalNanos * 1e-9, TimeUnit.MILLISECONDS));
+		StringPrinter printer = StringPrinter.systemOut();
+		for (int i = 0; i < merged.numChildren; ++i) {
+			printTree(printer, merged.children[i], "", merged.totalNanos);
+		}
+	}
+
+	private static void printTree(StringPrinter printer, Node node, String indent, long allTotal) {
+		if (node.count == 0) {
+			// entered, but not yet closed on any thread
+			printer.println(indent + node.name + ": still open");
+		} else {
+			printer.println(indent + node.name + ": percent=" + formatPercent(node.totalNanos, allTotal) +
+					" mean=" + RunningStats.formatUnit(node.totalNanos * 1e-9 / node.count, TimeUnit.MICROSECONDS) +
+					" min=" + RunningStats.formatUnit(node.minNanos * 1e-9, TimeUnit.MICROSECONDS) +
+					" max=" + RunningStats.formatUnit(node.maxNanos * 1e-9, TimeUnit.MICROSECONDS) +
+					" num=" + node.count);
+		}
+		for (int i = 0; i < node.numChildren; ++i) {
+			printTree(printer, node.children[i], indent + "  ", allTotal);
+		}
+	}
+
+	private static String formatPercent(long part, long total) {
+		return Integer.toString(total == 0 ? 0 : (int) Math.round(100.0 * part / total)) + "%";
+	}
+
+	/**
+	 * Returns the merged call tree in the "collapsed stack" format which is used by
+	 * flame graph tools, one line per scope as `outer;inner selfMicroseconds`.
+	 */
+	public String toCollapsedStacks() {
+		Node merged = merged();
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < merged.numChildren; ++i) {
+			collapse(lines, merged.children[i], "");
+		}
+		return StringPrinter.buildString(printer -> lines.forEach(printer::println));
+	}
+
+	private static void collapse(List<String> lines, Node node, String prefix) {
+		String stack = prefix + node.name;
+		long selfMicros = TimeUnit.NANOSECONDS.toMicros(node.totalNanos - node.childNanos());
+		if (selfMicros > 0) {
+			lines.add(stack + " " + selfMicros);
+		}
+		for (int i = 0; i < node.numChildren; ++i) {
+			collapse(lines, node.children[i], stack + ";");
+		}
+	}
+}
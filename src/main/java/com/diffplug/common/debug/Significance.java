@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+/** Confidence intervals and significance tests on {@link RunningStats.Stat}, using Student's t-distribution. */
+class Significance {
+	private Significance() {}
+
+	/** Returns the half-width of the confidence interval (e.g. 0.99) for the mean, or NaN if there are fewer than two samples. */
+	static double confidenceHalfWidth(RunningStats.Stat stat, double confidence) {
+		if (stat.num < 2) {
+			return Double.NaN;
+		}
+		return tCritical(confidence, stat.num - 1) * stat.stddev / Math.sqrt(stat.num);
+	}
+
+	/** Returns the two-sided p-value of Welch's t-test for whether the two means differ, or NaN if either has fewer than two samples. */
+	static double welchPValue(RunningStats.Stat a, RunningStats.Stat b) {
+		if (a.num < 2 || b.num < 2) {
+			return Double.NaN;
+		}
+		double varA = a.stddev * a.stddev / a.num;
+		double varB = b.stddev * b.stddev / b.num;
+		if (varA + varB == 0) {
+			return a.mean == b.mean ? 1 : 0;
+		}
+		double t = (a.mean - b.mean) / Math.sqrt(varA + varB);
+		double df = (varA + varB) * (varA + varB) / (varA * varA / (a.num - 1) + varB * varB / (b.num - 1));
+		return 2 * (1 - tCdf(Math.abs(t), df));
+	}
+
+	/** Returns t such that a two-sided interval of +/- t contains `confidence` of the t-distribution. */
+	static double tCritical(double confidence, double df) {
+		double target = 0.5 + confidence / 2;
+		double low = 0;
+		double high = 1;
+		while (tCdf(high, df) < target) {
+			high *= 2;
+		}
+		for (int i = 0; i < 100; ++i) {
+			double mid = 0.5 * (low + high);
+			if (tCdf(mid, df) < target) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return 0.5 * (low + high);
+	}
+
+	/** The cumulative distribution function of Student's t-distribution. */
+	static double tCdf(double t, double df) {
+		double tail = 0.5 * regularizedIncompleteBeta(df / (df + t * t), df / 2, 0.5);
+		return t >= 0 ? 1 - tail : tail;
+	}
+
+	/** I_x(a, b), via the continued fraction from Numerical Recipes. */
+	static double regularizedIncompleteBeta(double x, double a, double b) {
+		if (x <= 0) {
+			return 0;
+		} else if (x >= 1) {
+			return 1;
+		}
+		double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+		if (x < (a + 1) / (a + b + 2)) {
+			return front * betaContinuedFraction(x, a, b) / a;
+		} else {
+			return 1 - front * betaContinuedFraction(1 - x, b, a) / b;
+		}
+	}
+
+	private static double betaContinuedFraction(double x, double a, double b) {
+		final double tiny = 1e-300;
+		double c = 1;
+		double d = 1 - (a + b) * x / (a + 1);
+		d = 1 / (Math.abs(d) < tiny ? tiny : d);
+		double h = d;
+		for (int m = 1; m <= 300; ++m) {
+			int m2 = 2 * m;
+			double numerator = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+			d = 1 + numerator * d;
+			d = 1 / (Math.abs(d) < tiny ? tiny : d);
+			c = 1 + numerator / c;
+			c = Math.abs(c) < tiny ? tiny : c;
+			h *= d * c;
+
+			numerator = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+			d = 1 + numerator * d;
+			d = 1 / (Math.abs(d) < tiny ? tiny : d);
+			c = 1 + numerator / c;
+			c = Math.abs(c) < tiny ? tiny : c;
+			double delta = d * c;
+			h *= delta;
+			if (Math.abs(delta - 1) < 1e-15) {
+				break;
+			}
+		}
+		return h;
+	}
+
+	/** The log of the gamma function, via the Lanczos approximation. */
+	static double logGamma(double x) {
+		double[] coefficients = {
+				76.18009172947146, -86.50532032941677, 24.01409824083091,
+				-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double series = 1.000000000190015;
+		for (double coefficient : coefficients) {
+			series += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * series / x);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * A ring buffer of `numSlices` slices, each of which covers `sliceDuration`.
+ *
+ * There is no background thread: whenever the current slice is requested and
+ * its spot in the ring still holds an expired slice, that slice is replaced
+ * with a fresh one.
+ */
+class SlidingWindow<S> {
+	private final long sliceNanos;
+	private final Supplier<S> factory;
+	private final LongSupplier nanoTicker;
+	private final AtomicReferenceArray<Slice<S>> ring;
+
+	SlidingWindow(int numSlices, long sliceDuration, TimeUnit unit, Supplier<S> factory, LongSupplier nanoTicker) {
+		Preconditions.checkArgument(numSlices > 0, "numSlices must be positive");
+		this.sliceNanos = unit.toNanos(sliceDuration);
+		Preconditions.checkArgument(sliceNanos > 0, "sliceDuration must be positive");
+		this.factory = factory;
+		this.nanoTicker = nanoTicker;
+		this.ring = new AtomicReferenceArray<>(numSlices);
+	}
+
+	private long currentEpoch() {
+		return Math.floorDiv(nanoTicker.getAsLong(), sliceNanos);
+	}
+
+	/** Returns the slice for right now, rotating out an expired slice if necessary. */
+	S current() {
+		long epoch = currentEpoch();
+		int index = (int) Math.floorMod(epoch, (long) ring.length());
+		while (true) {
+			Slice<S> slice = ring.get(index);
+			if (slice != null && slice.epoch >= epoch) {
+				return slice.value;
+			}
+			Slice<S> fresh = new Slice<>(epoch, factory.get());
+			if (ring.compareAndSet(index, slice, fresh)) {
+				return fresh.value;
+			}
+		}
+	}
+
+	/** Passes every slice which is still inside the window to the given consumer, along with its age in slices (0 is the current slice). */
+	void forEachLive(ObjIntConsumer<S> consumer) {
+		long epoch = currentEpoch();
+		for (int i = 0; i < ring.length(); ++i) {
+			Slice<S> slice = ring.get(i);
+			if (slice != null) {
+				long age = epoch - slice.epoch;
+				if (age >= 0 && age < ring.length()) {
+					consumer.accept(slice.value, (int) age);
+				}
+			}
+		}
+	}
+
+	private static final class Slice<S> {
+		final long epoch;
+		final S value;
+
+		Slice(long epoch, S value) {
+			this.epoch = epoch;
+			this.value = value;
+		}
+	}
+}
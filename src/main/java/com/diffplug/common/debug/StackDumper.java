@@ -16,14 +16,21 @@
 package com.diffplug.common.debug;
 
 import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Objects;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
+import com.diffplug.common.base.Errors;
+import com.diffplug.common.base.Preconditions;
 import com.diffplug.common.base.StringPrinter;
 
 /**
@@ -61,22 +68,22 @@ public class StackDumper {
 	/** Dumps the first {@code stackLimit} frames of the current stack to the system error console, excluding traces from {@code classPrefixesToExclude}. */
 	public static void dump(String message, int stackLimit, String... classPrefixesToExclude) {
 		Objects.requireNonNull(message);
-		// class names to include
-		Predicate<StackTraceElement> isIncluded = trace -> {
-			for (String prefix : classPrefixesToExclude) {
-				if (trace.getClassName().startsWith(prefix)) {
-					return false;
-				}
+		Preconditions.checkArgument(stackLimit >= 0, "stackLimit must be non-negative");
+		dump(message, captureStackBelow(new Class<?>[0], classPrefixesToExclude, true, stackLimit));
+	}
+
+	/** Returns true if the given frame's class starts with any of the given prefixes. */
+	static boolean isExcluded(StackTraceElement trace, String[] classPrefixesToExclude) {
+		return isExcluded(trace.getClassName(), classPrefixesToExclude);
+	}
+
+	private static boolean isExcluded(String className, String[] classPrefixesToExclude) {
+		for (String prefix : classPrefixesToExclude) {
+			if (className.startsWith(prefix)) {
+				return true;
 			}
-			return true;
-		};
-		// filter the stack
-		List<StackTraceElement> stack = captureStackBelow().stream()
-				.filter(trace -> trace.getLineNumber() >= 0)
-				.filter(isIncluded)
-				.limit(stackLimit)
-				.collect(Collectors.toList());
-		dump(message, stack);
+		}
+		return false;
 	}
 
 	/** Dumps a stack trace anytime the trigger string is printed to System.out. */
@@ -89,6 +96,16 @@ public class StackDumper {
 		System.setErr(wrapAndDumpWhenContains(System.err, trigger));
 	}
 
+	/** Dumps a stack trace anytime any of the trigger strings is printed to System.out. */
+	public static void dumpWhenSysOutContainsAny(String... triggers) {
+		System.setOut(wrapAndDumpWhenContainsAny(System.out, triggers));
+	}
+
+	/** Dumps a stack trace anytime any of the trigger strings is printed to System.err. */
+	public static void dumpWhenSysErrContainsAny(String... triggers) {
+		System.setErr(wrapAndDumpWhenContainsAny(System.err, triggers));
+	}
+
 	/**
 	 * Returns a PrintStream which will redirect all of its output to the source PrintStream. If
 	 * the trigger string is passed through the wrapped PrintStream, then it will dump the
@@ -101,19 +118,33 @@ public class StackDumper {
 	 * @return a PrintStream with the above properties
 	 */
 	public static PrintStream wrapAndDumpWhenContains(PrintStream source, String trigger) {
+		return wrapAndDumpWhenContainsAny(source, Objects.requireNonNull(trigger));
+	}
+
+	/**
+	 * Returns a PrintStream which will redirect all of its output to the source PrintStream. Once
+	 * a line which contains any of the triggers has been printed, it will dump the stack trace of
+	 * the call that printed it, once for each trigger in the line.
+	 * <p>
+	 * The output is matched byte-by-byte against all of the triggers at once, so the cost doesn't
+	 * grow with the number of triggers, and nothing is allocated unless a trigger matches.
+	 * 
+	 * @param source
+	 *            the returned PrintStream will delegate to this stream
+	 * @param triggers
+	 *            the strings which trigger a stack dump
+	 * @return a PrintStream with the above properties
+	 */
+	public static PrintStream wrapAndDumpWhenContainsAny(PrintStream source, String... triggers) {
 		Objects.requireNonNull(source);
-		Objects.requireNonNull(trigger);
-		StringPrinter wrapped = new StringPrinter(StringPrinter.stringsToLines(perLine -> {
-			source.println(perLine);
-			if (perLine.contains(trigger)) {
-				dump("Triggered by " + trigger);
-			}
-		}));
-		return wrapped.toPrintStream();
+		for (String trigger : triggers) {
+			Objects.requireNonNull(trigger);
+		}
+		return TriggerStream.wrap(source, triggers, (trigger, stack) -> dump("Triggered by " + trigger, stack));
 	}
 
 	/** Converts a list of stack trace elements to a String similar to Throwable.printStackTrace(). */
-	private static String stackTraceToString(List<StackTraceElement> stack) {
+	static String stackTraceToString(List<StackTraceElement> stack) {
 		return StringPrinter.buildString(printer -> {
 			for (StackTraceElement element : stack) {
 				printer.print("at ");
@@ -131,30 +162,175 @@ public class StackDumper {
 
 	/** Captures all of the current stack which is below the given classes. */
 	public static List<StackTraceElement> captureStackBelow(Class<?>... clazzes) {
-		List<Class<?>> toIgnore = new ArrayList<>(clazzes.length + 1);
-		toIgnore.addAll(Arrays.asList(clazzes));
-		toIgnore.add(StackDumper.class);
+		return captureStackBelow(clazzes, new String[0], false, Integer.MAX_VALUE);
+	}
 
-		Predicate<StackTraceElement> isSkipped = element -> toIgnore.stream().anyMatch(clazz -> {
-			String name = element.getClassName();
-			return name.equals(clazz.getName()) || name.startsWith(clazz.getName() + "$$Lambda");
-		});
+	/**
+	 * Captures at most {@code limit} frames of the current stack which are below the given classes,
+	 * excluding frames from {@code classPrefixesToExclude}, and frames without a line number if
+	 * {@code requireLineNumber} is set.
+	 * <p>
+	 * On Java 9+ this walks the stack lazily with {@code StackWalker}, so that frames past the
+	 * limit are never materialized.  On Java 8 it filters {@link Thread#getStackTrace()}.
+	 */
+	static List<StackTraceElement> captureStackBelow(Class<?>[] clazzes, String[] classPrefixesToExclude, boolean requireLineNumber, int limit) {
+		for (String prefix : classPrefixesToExclude) {
+			Objects.requireNonNull(prefix);
+		}
+		String[] toIgnore = new String[clazzes.length + 1];
+		for (int i = 0; i < clazzes.length; ++i) {
+			toIgnore[i] = clazzes[i].getName();
+		}
+		toIgnore[clazzes.length] = StackDumper.class.getName();
+		FrameFilter filter = new FrameFilter(toIgnore, classPrefixesToExclude, requireLineNumber, limit);
+		if (StackWalking.INSTANCE != null) {
+			return StackWalking.INSTANCE.capture(filter);
+		} else {
+			return filter.filter(Thread.currentThread().getStackTrace());
+		}
+	}
 
-		List<StackTraceElement> rawStack = Arrays.asList(Thread.currentThread().getStackTrace());
-		ListIterator<StackTraceElement> iterator = rawStack.listIterator();
+	/** Decides which frames of a stack are captured, using only the frame's class name and line number. */
+	static final class FrameFilter {
+		private final String[] toIgnore;
+		private final String[] lambdaPrefixes;
+		private final String[] classPrefixesToExclude;
+		private final boolean requireLineNumber;
+		final int limit;
 
-		// iterate until we find something skipped
-		while (iterator.hasNext() && !isSkipped.test(iterator.next())) {}
+		FrameFilter(String[] toIgnore, String[] classPrefixesToExclude, boolean requireLineNumber, int limit) {
+			this.toIgnore = toIgnore;
+			this.lambdaPrefixes = new String[toIgnore.length];
+			for (int i = 0; i < toIgnore.length; ++i) {
+				lambdaPrefixes[i] = toIgnore[i] + "$$Lambda";
+			}
+			this.classPrefixesToExclude = classPrefixesToExclude;
+			this.requireLineNumber = requireLineNumber;
+			this.limit = limit;
+		}
 
-		boolean foundSomethingToSkip = iterator.hasNext();
-		if (foundSomethingToSkip) {
-			// iterate unti we find something not skipped
-			while (iterator.hasNext() && isSkipped.test(iterator.next())) {}
-			// the filtering was successful!
-			return rawStack.subList(iterator.previousIndex(), rawStack.size());
-		} else {
-			// we didn't find something to skip, so we'll return the whole stack
-			return rawStack;
+		/** Returns true if the given frame belongs to one of the classes that the capture is below. */
+		boolean isIgnored(String className) {
+			for (int i = 0; i < toIgnore.length; ++i) {
+				if (className.equals(toIgnore[i]) || className.startsWith(lambdaPrefixes[i])) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/** Returns true if a frame below the ignored classes should be captured. */
+		boolean isKept(String className, int lineNumber) {
+			return (!requireLineNumber || lineNumber >= 0) && !isExcluded(className, classPrefixesToExclude);
+		}
+
+		/** Filters a fully-materialized stack. */
+		List<StackTraceElement> filter(StackTraceElement[] rawStack) {
+			int start = 0;
+			// iterate until we find something skipped
+			while (start < rawStack.length && !isIgnored(rawStack[start].getClassName())) {
+				++start;
+			}
+			if (start < rawStack.length) {
+				// iterate until we find something not skipped
+				while (start < rawStack.length && isIgnored(rawStack[start].getClassName())) {
+					++start;
+				}
+			} else {
+				// we didn't find something to skip, so we'll return the whole stack
+				start = 0;
+			}
+			List<StackTraceElement> stack = new ArrayList<>();
+			for (int i = start; i < rawStack.length && stack.size() < limit; ++i) {
+				StackTraceElement element = rawStack[i];
+				if (isKept(element.getClassName(), element.getLineNumber())) {
+					stack.add(element);
+				}
+			}
+			return stack;
+		}
+	}
+
+	/** Lazy stack capture with {@code java.lang.StackWalker}, which is accessed reflectively so that we still run on Java 8. */
+	static final class StackWalking {
+		/** Null if StackWalker isn't available. */
+		@Nullable
+		static final StackWalking INSTANCE = create();
+
+		private final MethodHandle walk;
+		private final MethodHandle getClassName;
+		private final MethodHandle getLineNumber;
+		private final MethodHandle toStackTraceElement;
+
+		private StackWalking(MethodHandle walk, MethodHandle getClassName, MethodHandle getLineNumber, MethodHandle toStackTraceElement) {
+			this.walk = walk;
+			this.getClassName = getClassName;
+			this.getLineNumber = getLineNumber;
+			this.toStackTraceElement = toStackTraceElement;
+		}
+
+		@Nullable
+		private static StackWalking create() {
+			try {
+				Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+				Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+				// walk is caller-sensitive, so it needs a full-privilege lookup
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				Class<?> optionClass = Class.forName("java.lang.StackWalker$Option");
+				// show reflection frames to match Thread.getStackTrace()
+				Object showReflectFrames = optionClass.getField("SHOW_REFLECT_FRAMES").get(null);
+				Object walker = walkerClass.getMethod("getInstance", optionClass).invoke(null, showReflectFrames);
+				MethodHandle walk = lookup.findVirtual(walkerClass, "walk", MethodType.methodType(Object.class, Function.class)).bindTo(walker);
+				return new StackWalking(walk,
+						lookup.findVirtual(frameClass, "getClassName", MethodType.methodType(String.class)).asType(MethodType.methodType(String.class, Object.class)),
+						lookup.findVirtual(frameClass, "getLineNumber", MethodType.methodType(int.class)).asType(MethodType.methodType(int.class, Object.class)),
+						lookup.findVirtual(frameClass, "toStackTraceElement", MethodType.methodType(StackTraceElement.class)).asType(MethodType.methodType(StackTraceElement.class, Object.class)));
+			} catch (ReflectiveOperationException | SecurityException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Walks the stack, only converting the captured frames to {@link StackTraceElement},
+		 * and stopping as soon as the limit is reached.  The walk starts inside this class,
+		 * so the ignored {@code StackDumper} frames are always found.
+		 */
+		List<StackTraceElement> capture(FrameFilter filter) {
+			Function<Stream<?>, List<StackTraceElement>> walker = frames -> {
+				List<StackTraceElement> stack = new ArrayList<>();
+				Iterator<?> iterator = frames.iterator();
+				try {
+					// iterate until we find something skipped, then until we find something not skipped
+					boolean foundIgnored = false;
+					boolean pastIgnored = false;
+					while (iterator.hasNext() && stack.size() < filter.limit) {
+						Object frame = iterator.next();
+						String className = (String) getClassName.invokeExact(frame);
+						if (!pastIgnored) {
+							if (filter.isIgnored(className)) {
+								foundIgnored = true;
+								continue;
+							} else if (!foundIgnored) {
+								continue;
+							}
+							pastIgnored = true;
+						}
+						if (filter.isKept(className, (int) getLineNumber.invokeExact(frame))) {
+							stack.add((StackTraceElement) toStackTraceElement.invokeExact(frame));
+						}
+					}
+				} catch (Throwable e) {
+					throw Errors.asRuntime(e);
+				}
+				return stack;
+			};
+			try {
+				@SuppressWarnings("unchecked")
+				List<StackTraceElement> stack = (List<StackTraceElement>) (Object) walk.invokeExact(walker);
+				return stack;
+			} catch (Throwable e) {
+				throw Errors.asRuntime(e);
+			}
 		}
 	}
 
@@ -162,7 +338,7 @@ public class StackDumper {
 	 * Prints the given string to the the given printer, wrapped in hierarchy-friendly
 	 * braces.  Useful for emphasizing a specific event from a sea of logging statements.
 	 */
-	private static void printEmphasized(String toPrint) {
+	static void printEmphasized(String toPrint) {
 		// print the triggered header
 		pristineSysErr.println("+----------\\");
 		for (String line : toPrint.split("\n")) {
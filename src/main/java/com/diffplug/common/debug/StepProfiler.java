@@ -15,10 +15,19 @@
  */
 package com.diffplug.common.debug;
 
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import javax.annotation.Nullable;
+
+import com.diffplug.common.base.Preconditions;
 
 /**
  * Profiles the various steps of code.
@@ -40,12 +49,24 @@ import java.util.concurrent.TimeUnit;
  *     stepProfiler.printResults();
  * }
  * ```
+ *
+ * For tight loops, {@link #step(String)} returns a {@link StepHandle} which
+ * doesn't hash, box, or lock.
  */
 public class StepProfiler {
 	private final LapTimer timer;
 	private final String prefix;
 
-	private Optional<Step> currentStep = Optional.empty();
+	private Step currentStep = null;
+	private boolean trackAllocations = false;
+	private boolean trackCpuTime = false;
+	@Nullable
+	private BinaryTraceLog trace = null;
+	@Nullable
+	private volatile Timeline timeline = null;
+	private long currentStepStartNanos;
+	/** The thread which started the current step, so that its trace events stay on one thread. */
+	private long currentStepThreadId;
 	LinkedHashMap<String, Step> steps = new LinkedHashMap<>();
 
 	public StepProfiler(LapTimer timer, String prefix) {
@@ -57,22 +78,194 @@ public class StepProfiler {
 		this(timer, "");
 	}
 
+	/**
+	 * Attributes the bytes allocated and the garbage collections during each step
+	 * from {@link #startStep(String)}, and prints them with the results.
+	 *
+	 * Allocation is counted on the thread which started the step, and only if the same
+	 * thread finishes it.  {@link StepHandle}s are not tracked.
+	 */
+	public synchronized void trackAllocations() {
+		trackAllocations = true;
+	}
+
+	/**
+	 * Records the CPU time during each step from {@link #startStep(String)}, and prints
+	 * it next to the wall time, so that a CPU-bound step can be told apart from one which
+	 * is waiting on locks or I/O.  Like {@link #trackAllocations()}, only the thread which
+	 * started the step is measured, and only if the same thread finishes it.
+	 *
+	 * @throws UnsupportedOperationException if this JVM can't measure the CPU time of the current thread
+	 */
+	public synchronized void trackCpuTime() {
+		JvmMetrics.checkCpuSupported();
+		trackCpuTime = true;
+	}
+
+	/**
+	 * Records the start and finish of each step from {@link #startStep(String)} into the given
+	 * trace (or stops recording, if null).  Both are recorded on the thread which started the
+	 * step, even if another thread finishes it.  {@link StepHandle}s are not traced.
+	 */
+	public synchronized void traceTo(@Nullable BinaryTraceLog trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Starts recording the start and end of every step on every thread, keeping the
+	 * most recent `spansPerThread` for each thread, so that the timeline can be exported
+	 * with {@link #toChromeTrace()}.  Recording again discards the previous timeline.
+	 *
+	 * Spans from {@link #startStep(String)} are shown on the thread which finished them,
+	 * and {@link StepHandle}s are only recorded if they were created after this call.
+	 */
+	public synchronized void recordTimeline(int spansPerThread) {
+		timeline = new Timeline(spansPerThread);
+	}
+
+	/**
+	 * Returns the timeline from {@link #recordTimeline(int)} as Chrome Trace Event JSON,
+	 * which can be opened in Perfetto (ui.perfetto.dev) or `chrome://tracing`.  Best called
+	 * once the profiled threads are quiet, since spans which are overwritten during the
+	 * export might be garbled.
+	 */
+	public String toChromeTrace() {
+		Timeline timeline = this.timeline;
+		Preconditions.checkState(timeline != null, "Must call recordTimeline first");
+		return timeline.toChromeJson();
+	}
+
 	/** Starts accumulating time to the given step. If a step was already accumulating time, it is stopped. */
 	public synchronized void startStep(String name) {
 		Objects.requireNonNull(name);
 		finish();
 
-		Step step = steps.computeIfAbsent(name, Step::new);
-		currentStep = Optional.of(step);
+		currentStep = steps.computeIfAbsent(name, Step::new);
+		currentStepThreadId = Thread.currentThread().getId();
+		if (trace != null) {
+			trace.begin(currentStep.prefixedName);
+		}
+		if (timeline != null) {
+			currentStepStartNanos = System.nanoTime();
+		}
+		currentStep.meter.trackAllocations = trackAllocations;
+		currentStep.meter.trackCpu = trackCpuTime;
+		if (currentStep.meter.isTracking()) {
+			currentStep.meter.start();
+		}
 	}
 
 	/** Stops accumulating time to the current step (if any). */
 	public synchronized void finish() {
 		double elapsed = timer.lap();
-		if (currentStep.isPresent()) {
-			currentStep.get().addTime(elapsed);
+		if (currentStep != null) {
+			currentStep.addTime(elapsed);
+			if (currentStep.meter.isTracking()) {
+				currentStep.meter.stop(1);
+			}
+			if (trace != null) {
+				trace.end(currentStep.prefixedName, currentStepThreadId);
+			}
+			Timeline timeline = this.timeline;
+			if (timeline != null && currentStepStartNanos != 0) {
+				timeline.record(currentStep.prefixedName, currentStepStartNanos, System.nanoTime());
+			}
+			currentStepStartNanos = 0;
+		}
+		currentStep = null;
+	}
+
+	/**
+	 * Returns the calling thread's handle for the given step, which accumulates time
+	 * independently of {@link #startStep(String)}.  The handle is created on the
+	 * thread's first call, and reused after that, so calling this per request doesn't
+	 * grow anything.  It does take a lock though, so fetch the handle outside of the
+	 * hot loop.
+	 *
+	 * A handle must only be used by the thread which fetched it.  Once that thread
+	 * has died, its handle's totals are folded into the step, so a thread-per-task
+	 * server only keeps a handle per live thread.
+	 */
+	public synchronized StepHandle step(String name) {
+		Objects.requireNonNull(name);
+		Step step = steps.computeIfAbsent(name, Step::new);
+		StepHandle handle = step.threadHandle.get();
+		if (handle == null) {
+			step.retireDeadHandles();
+			handle = new StepHandle(step.prefixedName, timeline, Thread.currentThread());
+			step.threadHandle.set(handle);
+			step.handles.add(handle);
+		}
+		return handle;
+	}
+
+	/**
+	 * Accumulates time to a single step using `System.nanoTime()`, and
+	 * only touches its own primitive fields (and the current thread's timeline,
+	 * if {@link StepProfiler#recordTimeline(int)} was on when it was created).
+	 * Created by {@link StepProfiler#step(String)}.
+	 *
+	 * Each finish publishes the stats by writing {@link #count} last (with a lazySet,
+	 * which needs no full fence), and readers read it first, so results read while
+	 * the thread is still recording are approximate, but never torn into a bogus
+	 * min or max.
+	 */
+	public static final class StepHandle {
+		private static final AtomicLongFieldUpdater<StepHandle> COUNT = AtomicLongFieldUpdater.newUpdater(StepHandle.class, "count");
+
+		long startNanos;
+		volatile long count = 0;
+		long totalNanos = 0;
+		long minNanos = Long.MAX_VALUE;
+		long maxNanos = Long.MIN_VALUE;
+		private final String name;
+		@Nullable
+		private final Timeline timeline;
+		private final WeakReference<Thread> owner;
+
+		private StepHandle(String name, @Nullable Timeline timeline, @Nullable Thread owner) {
+			this.name = name;
+			this.timeline = timeline;
+			this.owner = new WeakReference<>(owner);
+		}
+
+		boolean isAlive() {
+			Thread thread = owner.get();
+			return thread != null && thread.isAlive();
+		}
+
+		/** Adds the published stats of the given handle into this one, which must not be recording. */
+		void mergeFrom(StepHandle other) {
+			long otherCount = other.count;
+			if (otherCount > 0) {
+				totalNanos += other.totalNanos;
+				minNanos = Math.min(minNanos, other.minNanos);
+				maxNanos = Math.max(maxNanos, other.maxNanos);
+				count += otherCount;
+			}
+		}
+
+		/** Starts accumulating time. */
+		public void start() {
+			startNanos = System.nanoTime();
+		}
+
+		/** Stops accumulating time, and records the time since {@link #start()}. */
+		public void finish() {
+			long endNanos = System.nanoTime();
+			long elapsed = endNanos - startNanos;
+			if (timeline != null) {
+				timeline.record(name, startNanos, endNanos);
+			}
+			totalNanos += elapsed;
+			if (elapsed < minNanos) {
+				minNanos = elapsed;
+			}
+			if (elapsed > maxNanos) {
+				maxNanos = elapsed;
+			}
+			COUNT.lazySet(this, count + 1);
 		}
-		currentStep = Optional.empty();
 	}
 
 	/**
@@ -83,33 +276,97 @@ public class StepProfiler {
 		finish();
 		double allTotal = 0;
 		for (Step step : steps.values()) {
-			allTotal += step.stats.getStat().total;
+			allTotal += step.getStat().total;
 		}
 
 		System.out.println("------------------");
 		System.out.println("Total elapsed: " + RunningStats.formatUnit(allTotal, TimeUnit.MILLISECONDS));
+		ClockCalibration.printIfMeasured();
 
 		for (Step step : steps.values()) {
 			step.printResults(allTotal);
 		}
 	}
 
+	/** Returns the stats of every step (named with the prefix), for export or comparison against a baseline. */
+	public ProfileResults getResults() {
+		finish();
+		Map<String, RunningStats.Stat> stats = new LinkedHashMap<>();
+		synchronized (this) {
+			for (Step step : steps.values()) {
+				stats.put(step.prefixedName, step.getStat());
+			}
+		}
+		return ProfileResults.create(stats);
+	}
+
 	/** Wraps up a single ITimed under test. */
 	class Step {
 		final String name;
+		final String prefixedName;
 		final RunningStats stats = new RunningStats();
+		final Queue<StepHandle> handles = new ConcurrentLinkedQueue<>();
+		final ThreadLocal<StepHandle> threadHandle = new ThreadLocal<>();
+		/** The merged handles of dead threads, whose lock also guards moving handles into it. */
+		final StepHandle retired = new StepHandle("", null, null);
+		final JvmMetrics.Meter meter = new JvmMetrics.Meter();
 
 		public Step(String name) {
 			this.name = name;
+			this.prefixedName = prefix + name;
 		}
 
 		public void addTime(double time) {
 			stats.add(time);
 		}
 
-		public void printResults(double allTotal) {
+		/** Folds the handles of dead threads into {@link #retired}. */
+		void retireDeadHandles() {
+			synchronized (retired) {
+				Iterator<StepHandle> iterator = handles.iterator();
+				while (iterator.hasNext()) {
+					StepHandle handle = iterator.next();
+					if (!handle.isAlive()) {
+						iterator.remove();
+						retired.mergeFrom(handle);
+					}
+				}
+			}
+		}
+
+		/** Returns the stats from {@link #startStep(String)}, combined with those of any handles (which have no median). */
+		public RunningStats.Stat getStat() {
 			RunningStats.Stat stat = stats.getStat();
-			System.out.println(prefix + name + ": percent=" + formatPercent(stat.total / allTotal) + " " + stats.getStat().toString(TimeUnit.MILLISECONDS));
+			StepHandle merged = new StepHandle("", null, null);
+			synchronized (retired) {
+				merged.mergeFrom(retired);
+				for (StepHandle handle : handles) {
+					merged.mergeFrom(handle);
+				}
+			}
+			if (merged.count == 0) {
+				return stat;
+			}
+			long num = stat.num + merged.count;
+			double total = stat.total + merged.totalNanos * 1e-9;
+			double min = merged.minNanos * 1e-9;
+			double max = merged.maxNanos * 1e-9;
+			if (stat.num > 0) {
+				min = Math.min(min, stat.min);
+				max = Math.max(max, stat.max);
+			}
+			// Stat counts with an int, so clamp rather than wrap
+			int clampedNum = (int) Math.min(Integer.MAX_VALUE, num);
+			return new RunningStats.Stat(min, max, total / num, Double.NaN, total, clampedNum, stat.numNanOrInfinite);
+		}
+
+		public void printResults(double allTotal) {
+			RunningStats.Stat stat = getStat();
+			String line = prefix + name + ": percent=" + formatPercent(stat.total / allTotal) + " " + stat.toString(TimeUnit.MILLISECONDS);
+			if (trackAllocations || trackCpuTime) {
+				line += " " + meter.format("step");
+			}
+			System.out.println(line);
 		}
 	}
 
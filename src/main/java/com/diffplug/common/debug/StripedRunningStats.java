@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * {@link RunningStats} for many threads to record into at once.
+ *
+ * Each thread records into its own stripe, so recording threads never
+ * contend with each other.  The stripes are merged when {@link #getStat()}
+ * is called, which is the only time a stripe's lock is shared.  Once a
+ * thread has died, its stripe is folded into a single retired stripe, so
+ * a thread-per-task server only keeps a stripe per live thread.
+ */
+public class StripedRunningStats {
+	private final Supplier<RunningStats> stripeFactory;
+	final Queue<Stripe> stripes = new ConcurrentLinkedQueue<>();
+	/** The merged stripes of dead threads, whose lock also guards moving stripes into it. */
+	private final RunningStats retired;
+	private final ThreadLocal<RunningStats> stripe = ThreadLocal.withInitial(this::newStripe);
+
+	/** Creates StripedRunningStats whose median and percentiles are exact. */
+	public StripedRunningStats() {
+		this(RunningStats::new);
+	}
+
+	private StripedRunningStats(Supplier<RunningStats> stripeFactory) {
+		this.stripeFactory = stripeFactory;
+		this.retired = stripeFactory.get();
+	}
+
+	/** Creates StripedRunningStats whose stripes are each {@link RunningStats#createStreaming(double)}. */
+	public static StripedRunningStats createStreaming(double relativeAccuracy) {
+		return new StripedRunningStats(RunningStats.streamingFactory(relativeAccuracy));
+	}
+
+	private RunningStats newStripe() {
+		retireDeadStripes();
+		RunningStats newStripe = stripeFactory.get();
+		stripes.add(new Stripe(Thread.currentThread(), newStripe));
+		return newStripe;
+	}
+
+	/** Folds the stripes of dead threads into {@link #retired}. */
+	private void retireDeadStripes() {
+		synchronized (retired) {
+			Iterator<Stripe> iterator = stripes.iterator();
+			while (iterator.hasNext()) {
+				Stripe stripe = iterator.next();
+				if (!stripe.isAlive()) {
+					iterator.remove();
+					retired.addAll(stripe.stats);
+				}
+			}
+		}
+	}
+
+	/** Adds the given sample to the calling thread's stripe. */
+	public void add(double sample) {
+		stripe.get().add(sample);
+	}
+
+	/** Returns the merged stats of every thread's stripe at this time. */
+	public RunningStats.Stat getStat() {
+		RunningStats merged = stripeFactory.get();
+		synchronized (retired) {
+			merged.addAll(retired);
+			for (Stripe stripe : stripes) {
+				merged.addAll(stripe.stats);
+			}
+		}
+		return merged.getStat();
+	}
+
+	/** A thread's stripe, which doesn't keep the thread alive. */
+	static final class Stripe {
+		private final WeakReference<Thread> owner;
+		final RunningStats stats;
+
+		Stripe(Thread owner, RunningStats stats) {
+			this.owner = new WeakReference<>(owner);
+			this.stats = stats;
+		}
+
+		boolean isAlive() {
+			Thread thread = owner.get();
+			return thread != null && thread.isAlive();
+		}
+	}
+}
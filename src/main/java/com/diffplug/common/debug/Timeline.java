@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * Records spans (name, start, end) into a bounded ring per thread, which
+ * keeps the most recent spans and overwrites the oldest, and exports them
+ * as Chrome Trace Event JSON.  Recording doesn't lock or allocate.
+ *
+ * Once a thread has died, its spans are moved into a single shared ring of
+ * the same capacity, so a thread-per-task server only keeps a ring per live
+ * thread, plus the most recent spans of the dead ones.
+ */
+class Timeline {
+	private final int capacityPerThread;
+	/** All timestamps are relative to this `System.nanoTime()`. */
+	private final long originNanos = System.nanoTime();
+	final Queue<Ring> rings = new ConcurrentLinkedQueue<>();
+	/** The spans of dead threads, whose lock also guards moving rings into it. */
+	private final Retired retired;
+	private final ThreadLocal<Ring> ring = ThreadLocal.withInitial(() -> {
+		retireDeadRings();
+		Ring ring = new Ring(Thread.currentThread());
+		rings.add(ring);
+		return ring;
+	});
+
+	Timeline(int capacityPerThread) {
+		Preconditions.checkArgument(capacityPerThread > 0, "capacityPerThread must be positive");
+		this.capacityPerThread = capacityPerThread;
+		this.retired = new Retired();
+	}
+
+	/** Moves the spans of dead threads into {@link #retired}. */
+	private void retireDeadRings() {
+		synchronized (retired) {
+			Iterator<Ring> iterator = rings.iterator();
+			while (iterator.hasNext()) {
+				Ring ring = iterator.next();
+				if (!ring.isAlive()) {
+					iterator.remove();
+					ring.forEach((name, start, end) -> retired.record(name, start, end, ring.threadId, ring.threadName));
+				}
+			}
+		}
+	}
+
+	/** Records a span on the current thread, with timestamps from `System.nanoTime()`. */
+	void record(String name, long startNanos, long endNanos) {
+		ring.get().record(name, startNanos, endNanos);
+	}
+
+	/** Returns every span which is still in the rings, as Chrome Trace Event JSON. */
+	String toChromeJson() {
+		ChromeTrace chrome = new ChromeTrace();
+		synchronized (retired) {
+			retired.addTo(chrome);
+			for (Ring ring : rings) {
+				chrome.threadName(ring.threadId, ring.threadName);
+				ring.forEach((name, start, end) -> complete(chrome, name, start, end, ring.threadId));
+			}
+		}
+		return chrome.finish();
+	}
+
+	private void complete(ChromeTrace chrome, String name, long startNanos, long endNanos, long threadId) {
+		chrome.complete(name, (startNanos - originNanos) / 1000.0, (endNanos - startNanos) / 1000.0, threadId);
+	}
+
+	/** Receives a span. */
+	private interface SpanConsumer {
+		void accept(String name, long startNanos, long endNanos);
+	}
+
+	/** The spans of a single thread. */
+	private class Ring {
+		private final WeakReference<Thread> owner;
+		final long threadId;
+		final String threadName;
+		final String[] names = new String[capacityPerThread];
+		final long[] starts = new long[capacityPerThread];
+		final long[] ends = new long[capacityPerThread];
+		/** The total number of spans which have been recorded, written after each span so that readers see complete spans. */
+		volatile long count = 0;
+
+		Ring(Thread thread) {
+			this.owner = new WeakReference<>(thread);
+			this.threadId = thread.getId();
+			this.threadName = thread.getName();
+		}
+
+		/** Only called by the owning thread. */
+		void record(String name, long startNanos, long endNanos) {
+			long index = count;
+			int slot = (int) (index % capacityPerThread);
+			names[slot] = name;
+			starts[slot] = startNanos;
+			ends[slot] = endNanos;
+			count = index + 1;
+		}
+
+		boolean isAlive() {
+			Thread thread = owner.get();
+			return thread != null && thread.isAlive();
+		}
+
+		/** Passes the spans from oldest to newest.  Spans which are overwritten while this runs might be garbled. */
+		void forEach(SpanConsumer consumer) {
+			long end = count;
+			for (long i = Math.max(0, end - capacityPerThread); i < end; ++i) {
+				int slot = (int) (i % capacityPerThread);
+				String name = names[slot];
+				if (name != null) {
+					consumer.accept(name, starts[slot], ends[slot]);
+				}
+			}
+		}
+	}
+
+	/** The most recent spans of every dead thread, guarded by its own lock. */
+	private class Retired {
+		final String[] names = new String[capacityPerThread];
+		final long[] starts = new long[capacityPerThread];
+		final long[] ends = new long[capacityPerThread];
+		final long[] threadIds = new long[capacityPerThread];
+		final String[] threadNames = new String[capacityPerThread];
+		long count = 0;
+
+		void record(String name, long startNanos, long endNanos, long threadId, String threadName) {
+			int slot = (int) (count % capacityPerThread);
+			names[slot] = name;
+			starts[slot] = startNanos;
+			ends[slot] = endNanos;
+			threadIds[slot] = threadId;
+			threadNames[slot] = threadName;
+			++count;
+		}
+
+		void addTo(ChromeTrace chrome) {
+			Set<Long> named = new HashSet<>();
+			for (long i = Math.max(0, count - capacityPerThread); i < count; ++i) {
+				int slot = (int) (i % capacityPerThread);
+				if (named.add(threadIds[slot])) {
+					chrome.threadName(threadIds[slot], threadNames[slot]);
+				}
+				complete(chrome, names[slot], starts[slot], ends[slot], threadIds[slot]);
+			}
+		}
+	}
+}
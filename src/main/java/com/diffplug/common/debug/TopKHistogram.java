@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * A {@link Histogram} which only keeps the top `capacity` keys, so that its
+ * memory is fixed no matter how many distinct keys it sees.
+ *
+ * Uses the Space-Saving algorithm: when a new key arrives and the histogram is
+ * full, it evicts the key with the smallest count and inherits that count as
+ * its possible overestimate.  Every count is therefore an upper bound, and
+ * {@link #getTopValues(int, Function)} shows the lower bound next to any count
+ * which might be overestimated.  Any key whose true count is more than
+ * `total / capacity` is guaranteed to be present.
+ *
+ * Counts are longs, so they can accumulate durations without overflowing.
+ * Every {@link #add(Object, long)} takes this histogram's lock, so unlike
+ * {@link Histogram} (whose increments are lock-free CASes), threads which
+ * record concurrently will contend.  It's meant for bounding the memory of
+ * an unbounded key space, not for hot multi-threaded increments.
+ */
+public class TopKHistogram<T> {
+	private final HashMap<T, Counter<T>> map;
+	/** A min-heap of the counters, by count. */
+	private final Counter<T>[] heap;
+	private int size = 0;
+
+	/** Creates a histogram which keeps at most `capacity` keys. */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TopKHistogram(int capacity) {
+		Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+		this.map = new HashMap<>(2 * capacity);
+		this.heap = new Counter[capacity];
+	}
+
+	/** Increments the given key. */
+	public long increment(T key) {
+		return add(key, 1);
+	}
+
+	/** Increments the given key by the given (non-negative) amount, and returns its estimated count. */
+	public synchronized long add(T key, long count) {
+		Objects.requireNonNull(key);
+		Preconditions.checkArgument(count >= 0, "count must be non-negative");
+		Counter<T> counter = map.get(key);
+		if (counter == null) {
+			if (size < heap.length) {
+				counter = new Counter<>();
+				counter.key = key;
+				counter.count = count;
+				map.put(key, counter);
+				heap[size] = counter;
+				siftUp(size++);
+				return count;
+			} else {
+				// evict the smallest, whose count becomes our possible overestimate
+				counter = heap[0];
+				map.remove(counter.key);
+				counter.error = counter.count;
+			}
+			counter.key = key;
+			map.put(key, counter);
+		}
+		counter.count += count;
+		siftDown(counter.heapIndex);
+		return counter.count;
+	}
+
+	/** Calls {@link #getTopValues(int, Function)} with {@link Object#toString()} as the `toString` argument. */
+	public String getTopValues(int numValues) {
+		return getTopValues(numValues, Object::toString);
+	}
+
+	/** Returns a string which shows the top n values, along with a lower bound for any count which might be overestimated. */
+	public String getTopValues(int numValues, Function<? super T, String> toString) {
+		Objects.requireNonNull(toString);
+		TopValues<T> topValues = new TopValues<>(numValues, toString);
+		synchronized (this) {
+			for (int i = 0; i < size; ++i) {
+				Counter<T> counter = heap[i];
+				topValues.offer(counter.count, counter.key, counter.error);
+			}
+		}
+		return topValues.format();
+	}
+
+	/** Moves a newly added counter up the heap. */
+	private void siftUp(int index) {
+		Counter<T> counter = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (heap[parent].count <= counter.count) {
+				break;
+			}
+			heap[index] = heap[parent];
+			heap[index].heapIndex = index;
+			index = parent;
+		}
+		heap[index] = counter;
+		counter.heapIndex = index;
+	}
+
+	/** An existing counter's count only grows, so it can only need to move down the heap. */
+	private void siftDown(int index) {
+		Counter<T> counter = heap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+				++child;
+			}
+			if (heap[child].count >= counter.count) {
+				break;
+			}
+			heap[index] = heap[child];
+			heap[index].heapIndex = index;
+			index = child;
+		}
+		heap[index] = counter;
+		counter.heapIndex = index;
+	}
+
+	/** Passes every key which is currently kept and its (possibly overestimated) count to the given consumer. */
+	synchronized void forEach(ObjLongConsumer<T> consumer) {
+		for (int i = 0; i < size; ++i) {
+			consumer.accept(heap[i].key, heap[i].count);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	private static final class Counter<T> {
+		T key;
+		long count;
+		long error;
+		int heapIndex;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Selects the keys with the largest counts using a bounded min-heap, and formats
+ * them as a table.  Ties are broken by label, larger labels first, so the result
+ * doesn't depend on the order the keys are offered in.  Keys are only converted
+ * to strings if they make the cut, or if they tie the smallest count in a full heap.
+ */
+class TopValues<K> {
+	private final int numValues;
+	private final Function<? super K, String> toString;
+	private final PriorityQueue<Row> heap;
+
+	TopValues(int numValues, Function<? super K, String> toString) {
+		this.numValues = numValues;
+		this.toString = toString;
+		this.heap = new PriorityQueue<>(Math.max(1, Math.min(numValues, 1024)), Comparator.<Row> comparingLong(row -> row.count).thenComparing(Row::label));
+	}
+
+	/** Returns true if the given count might make the cut, so that callers can avoid boxing keys which won't. */
+	boolean accepts(long count) {
+		return heap.size() < numValues || (numValues > 0 && count >= heap.peek().count);
+	}
+
+	/** Offers the given count and key. */
+	void offer(long count, K key) {
+		offer(count, key, 0);
+	}
+
+	/** Offers the given count and key, where the count might be an overestimate by as much as `error`. */
+	void offer(long count, K key, long error) {
+		if (heap.size() < numValues) {
+			heap.add(new Row(count, key, error, null));
+		} else if (accepts(count)) {
+			Row min = heap.peek();
+			String label = null;
+			if (count == min.count) {
+				label = toString.apply(key);
+				if (label.compareTo(min.label()) <= 0) {
+					return;
+				}
+			}
+			heap.poll();
+			min.count = count;
+			min.key = key;
+			min.error = error;
+			min.label = label;
+			heap.add(min);
+		}
+	}
+
+	/** Returns a string which shows the values which made the cut, largest first (ties are sorted by label, descending). */
+	String format() {
+		List<Row> rows = new ArrayList<>(heap);
+		int longestKey = 0;
+		for (Row row : rows) {
+			longestKey = Math.max(longestKey, row.label().length());
+		}
+		rows.sort(Comparator.<Row> comparingLong(row -> row.count).thenComparing(Row::label).reversed());
+
+		StringBuilder output = new StringBuilder();
+		for (Row row : rows) {
+			output.append(row.label);
+			for (int i = 0; i < longestKey - row.label.length(); ++i) {
+				output.append(' ');
+			}
+			output.append(": ");
+			output.append(Long.toString(row.count));
+			if (row.error > 0) {
+				output.append(" (at least ");
+				output.append(Long.toString(row.count - row.error));
+				output.append(")");
+			}
+			output.append("\n");
+		}
+		return output.toString();
+	}
+
+	private final class Row {
+		long count;
+		K key;
+		long error;
+		/** Computed lazily. */
+		String label;
+
+		Row(long count, K key, long error, String label) {
+			this.count = count;
+			this.key = key;
+			this.error = error;
+			this.label = label;
+		}
+
+		String label() {
+			if (label == null) {
+				label = toString.apply(key);
+			}
+			return label;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Passes every byte through to a PrintStream, while matching the bytes against any
+ * number of triggers at once with an Aho-Corasick automaton, so that no per-line
+ * String is created.  Once a line which contained a trigger has been written,
+ * `onTrigger` is called once for each trigger the line contained, along with the
+ * stack of the code which printed it.
+ *
+ * Triggers are encoded with the default charset, which is what {@link #wrap} uses
+ * to encode the output.
+ */
+final class TriggerStream extends OutputStream {
+	private final PrintStream source;
+	private final String[] triggers;
+	private final BiConsumer<String, List<StackTraceElement>> onTrigger;
+
+	/** Maps each byte to its column in the transition table, where column 0 is every byte which isn't in a trigger. */
+	private final int[] byteClass = new int[256];
+	private final int numClasses;
+	/** The next state is `transitions[state * numClasses + byteClass[b]]`. */
+	private final int[] transitions;
+	/** The indices of the triggers which end at each state. */
+	private final int[][] outputs;
+	private int state = 0;
+
+	/** The triggers which the current line has matched. */
+	private final boolean[] isPending;
+	private final int[] pending;
+	private int numPending = 0;
+
+	private TriggerStream(PrintStream source, String[] triggers, BiConsumer<String, List<StackTraceElement>> onTrigger) {
+		this.source = source;
+		this.triggers = triggers;
+		this.onTrigger = onTrigger;
+		this.isPending = new boolean[triggers.length];
+		this.pending = new int[triggers.length];
+
+		byte[][] patterns = new byte[triggers.length][];
+		int classes = 1;
+		for (int i = 0; i < triggers.length; ++i) {
+			patterns[i] = triggers[i].getBytes(Charset.defaultCharset());
+			for (byte b : patterns[i]) {
+				if (byteClass[b & 0xFF] == 0) {
+					byteClass[b & 0xFF] = classes++;
+				}
+			}
+		}
+		this.numClasses = classes;
+
+		// build the trie, with -1 for missing transitions
+		List<int[]> rows = new ArrayList<>();
+		List<int[]> outs = new ArrayList<>();
+		rows.add(newRow(numClasses));
+		outs.add(new int[0]);
+		for (int i = 0; i < patterns.length; ++i) {
+			int s = 0;
+			for (byte b : patterns[i]) {
+				int c = byteClass[b & 0xFF];
+				if (rows.get(s)[c] == -1) {
+					rows.get(s)[c] = rows.size();
+					rows.add(newRow(numClasses));
+					outs.add(new int[0]);
+				}
+				s = rows.get(s)[c];
+			}
+			outs.set(s, append(outs.get(s), i));
+		}
+
+		// fill in the missing transitions breadth-first, so that the trie becomes a DFA
+		int[] fail = new int[rows.size()];
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		int[] root = rows.get(0);
+		for (int c = 0; c < numClasses; ++c) {
+			if (root[c] == -1) {
+				root[c] = 0;
+			} else {
+				// inherit the root's output, which is only non-empty for an empty trigger
+				outs.set(root[c], concat(outs.get(root[c]), outs.get(0)));
+				queue.add(root[c]);
+			}
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.poll();
+			int[] row = rows.get(s);
+			int[] failRow = rows.get(fail[s]);
+			for (int c = 0; c < numClasses; ++c) {
+				int t = row[c];
+				if (t == -1) {
+					row[c] = failRow[c];
+				} else {
+					fail[t] = failRow[c];
+					outs.set(t, concat(outs.get(t), outs.get(fail[t])));
+					queue.add(t);
+				}
+			}
+		}
+		this.transitions = new int[rows.size() * numClasses];
+		for (int s = 0; s < rows.size(); ++s) {
+			System.arraycopy(rows.get(s), 0, transitions, s * numClasses, numClasses);
+		}
+		this.outputs = outs.toArray(new int[0][]);
+	}
+
+	private static int[] newRow(int numClasses) {
+		int[] row = new int[numClasses];
+		Arrays.fill(row, -1);
+		return row;
+	}
+
+	private static int[] append(int[] array, int value) {
+		return concat(array, new int[]{value});
+	}
+
+	private static int[] concat(int[] a, int[] b) {
+		int[] concat = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, concat, a.length, b.length);
+		return concat;
+	}
+
+	/** Returns a PrintStream which writes to `source`, and calls `onTrigger` whenever a line contains any of the triggers. */
+	static PrintStream wrap(PrintStream source, String[] triggers, BiConsumer<String, List<StackTraceElement>> onTrigger) {
+		String[] distinct = new LinkedHashSet<>(Arrays.asList(triggers)).toArray(new String[0]);
+		return new PrintStream(new TriggerStream(source, distinct, onTrigger), true);
+	}
+
+	/** Advances the automaton by one byte, and returns true if the byte ends a line which has matched. */
+	private boolean step(int b) {
+		state = transitions[state * numClasses + byteClass[b & 0xFF]];
+		for (int output : outputs[state]) {
+			if (!isPending[output]) {
+				isPending[output] = true;
+				pending[numPending++] = output;
+			}
+		}
+		return b == '\n' && numPending > 0;
+	}
+
+	@Override
+	public void write(int b) {
+		source.write(b);
+		if (step(b)) {
+			fire();
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) {
+		int written = offset;
+		int end = offset + length;
+		for (int i = offset; i < end; ++i) {
+			if (step(buffer[i])) {
+				// the line is finished, so it has to be printed before the dump
+				source.write(buffer, written, i + 1 - written);
+				written = i + 1;
+				fire();
+			}
+		}
+		source.write(buffer, written, end - written);
+	}
+
+	/** Calls onTrigger for every trigger which the line matched. */
+	private void fire() {
+		List<StackTraceElement> stack = callerStack();
+		for (int i = 0; i < numPending; ++i) {
+			isPending[pending[i]] = false;
+			onTrigger.accept(triggers[pending[i]], stack);
+		}
+		numPending = 0;
+	}
+
+	/** Returns the stack of the code which printed the trigger, without this class or the JDK's I/O plumbing. */
+	private static List<StackTraceElement> callerStack() {
+		List<StackTraceElement> stack = StackDumper.captureStackBelow(TriggerStream.class);
+		int start = 0;
+		while (start < stack.size() && isIo(stack.get(start).getClassName())) {
+			++start;
+		}
+		return stack.subList(start, stack.size());
+	}
+
+	private static boolean isIo(String className) {
+		return className.startsWith("java.io.") || className.startsWith("sun.nio.cs.");
+	}
+
+	@Override
+	public void flush() {
+		source.flush();
+	}
+}
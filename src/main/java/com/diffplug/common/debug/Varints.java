@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.io.ByteArrayOutputStream;
+
+import com.diffplug.common.base.Preconditions;
+
+/** Unsigned LEB128 varints, 7 bits per byte, with zig-zag encoding for signed values. */
+class Varints {
+	private Varints() {}
+
+	/** The most bytes which a varint can take. */
+	static final int MAX_BYTES = 10;
+
+	/** Maps signed values to unsigned so that small magnitudes stay small: 0, -1, 1, -2 become 0, 1, 2, 3. */
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/** Inverse of {@link #zigZag(long)}. */
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/** Writes the given value as a varint. */
+	static void write(ByteArrayOutputStream output, long value) {
+		while ((value & ~0x7FL) != 0) {
+			output.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.write((int) value);
+	}
+
+	/** Writes the given value as a varint at the given position, which must have {@link #MAX_BYTES} available, and returns the new position. */
+	static int write(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/** Reads a varint at `position[0]`, and advances it. */
+	static long read(byte[] bytes, int[] position) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			Preconditions.checkArgument(position[0] < bytes.length, "Truncated varint");
+			byte b = bytes[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import com.diffplug.common.base.Preconditions;
+
+/**
+ * A {@link Histogram} of only the recent past, e.g. "the last 60 seconds in 1 second slices".
+ *
+ * Memory is bounded by the number of slices rather than by uptime, and recording
+ * is O(1).  Slices are rotated lazily by the recording thread, there is no
+ * background thread.
+ */
+public class WindowedHistogram<T> {
+	private final SlidingWindow<Histogram<T>> window;
+	/** The weight of a slice relative to the slice after it, 1 for no decay. */
+	private final double decayPerSlice;
+
+	WindowedHistogram(int numSlices, long sliceDuration, TimeUnit unit, double decayPerSlice, LongSupplier nanoTicker) {
+		this.window = new SlidingWindow<>(numSlices, sliceDuration, unit, Histogram::new, nanoTicker);
+		this.decayPerSlice = decayPerSlice;
+	}
+
+	/** Creates a histogram of the last `numSlices * sliceDuration`. */
+	public static <T> WindowedHistogram<T> create(int numSlices, long sliceDuration, TimeUnit unit) {
+		Objects.requireNonNull(unit);
+		return new WindowedHistogram<>(numSlices, sliceDuration, unit, 1.0, System::nanoTime);
+	}
+
+	/**
+	 * Creates a histogram of the last `numSlices * sliceDuration`, where the counts
+	 * in each slice decay exponentially with the given half-life (in slices).
+	 */
+	public static <T> WindowedHistogram<T> createDecaying(int numSlices, long sliceDuration, TimeUnit unit, double halfLifeInSlices) {
+		Objects.requireNonNull(unit);
+		Preconditions.checkArgument(halfLifeInSlices > 0, "halfLifeInSlices must be positive");
+		return new WindowedHistogram<>(numSlices, sliceDuration, unit, Math.pow(0.5, 1 / halfLifeInSlices), System::nanoTime);
+	}
+
+	/** Increments the given key. */
+	public int increment(T key) {
+		return add(key, 1);
+	}
+
+	/** Increments the given key by the given amount, and returns its count within the current slice. */
+	public int add(T key, int count) {
+		return window.current().add(key, count);
+	}
+
+	/** Calls {@link #getTopValues(int, Function)} with {@link Object#toString()} as the `toString` argument. */
+	public String getTopValues(int numValues) {
+		return getTopValues(numValues, Object::toString);
+	}
+
+	/** Returns a string which shows the top n values within the window (rounded to the nearest integer if decaying). */
+	public String getTopValues(int numValues, Function<? super T, String> toString) {
+		Objects.requireNonNull(toString);
+		Map<T, double[]> totals = new HashMap<>();
+		window.forEachLive((slice, age) -> {
+			double weight = Math.pow(decayPerSlice, age);
+			slice.forEach((key, count) -> totals.computeIfAbsent(key, k -> new double[1])[0] += weight * count);
+		});
+		TopValues<T> topValues = new TopValues<>(numValues, toString);
+		for (Map.Entry<T, double[]> entry : totals.entrySet()) {
+			topValues.offer((int) Math.round(entry.getValue()[0]), entry.getKey());
+		}
+		return topValues.format();
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link RunningStats} of only the recent past, e.g. "the last 60 seconds in 1 second slices".
+ *
+ * Each slice is {@link RunningStats#createStreaming(double)}, so memory is bounded
+ * by the number of slices rather than by uptime, and recording is O(1).  Slices
+ * are rotated lazily by the recording thread, there is no background thread.
+ */
+public class WindowedRunningStats {
+	private final double relativeAccuracy;
+	private final SlidingWindow<RunningStats> window;
+
+	WindowedRunningStats(int numSlices, long sliceDuration, TimeUnit unit, double relativeAccuracy, LongSupplier nanoTicker) {
+		this.relativeAccuracy = relativeAccuracy;
+		this.window = new SlidingWindow<>(numSlices, sliceDuration, unit, RunningStats.streamingFactory(relativeAccuracy), nanoTicker);
+	}
+
+	/** Creates stats of the last `numSlices * sliceDuration`, whose median and percentiles are within `relativeAccuracy`. */
+	public WindowedRunningStats(int numSlices, long sliceDuration, TimeUnit unit, double relativeAccuracy) {
+		this(numSlices, sliceDuration, Objects.requireNonNull(unit), relativeAccuracy, System::nanoTime);
+	}
+
+	/** Adds the given sample to the current slice. */
+	public void add(double sample) {
+		window.current().add(sample);
+	}
+
+	/** Returns the stats of every slice within the window. */
+	public RunningStats.Stat getStat() {
+		RunningStats merged = RunningStats.createStreaming(relativeAccuracy);
+		window.forEachLive((slice, age) -> merged.addAll(slice));
+		return merged.getStat();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.diffplug.common.debug.ProfileLogger.Mode;
+
+public class BinaryTraceLogTest {
+	@Test
+	public void testText() throws InterruptedException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (BinaryTraceLog trace = new BinaryTraceLog(output)) {
+			trace.log("A");
+			Thread.sleep(100);
+			trace.log("B");
+			Thread.sleep(100);
+			trace.log("A");
+		}
+		byte[] bytes = output.toByteArray();
+		assertThat(toHundreds(BinaryTraceLog.toText(bytes, Mode.EPOCH))).isEqualTo("0 A\n1 B\n2 A\n");
+		assertThat(toHundreds(BinaryTraceLog.toText(bytes, Mode.DELTA))).isEqualTo("0 A\n1 B\n1 A\n");
+		assertThat(BinaryTraceLog.toText(bytes, Mode.OFF)).isEmpty();
+	}
+
+	/** Rounds the timestamps of a text log to the nearest 100ms. */
+	private static String toHundreds(String text) {
+		StringBuilder builder = new StringBuilder();
+		for (String line : text.split("\n")) {
+			int ms = Integer.parseInt(line.substring(0, 4));
+			builder.append(Math.round(ms / 100.0)).append(line.substring("0000 ms".length())).append('\n');
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void testCompact() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (BinaryTraceLog trace = new BinaryTraceLog(output)) {
+			for (int i = 0; i < 10_000; ++i) {
+				trace.begin("parse");
+				trace.end("parse");
+			}
+		}
+		// a tag, a small delta, and a name ID
+		assertThat(output.size()).isLessThan(20_000 * 5);
+		String text = BinaryTraceLog.toText(output.toByteArray(), Mode.EPOCH);
+		assertThat(text).startsWith("0000 ms start parse\n");
+		assertThat(text.split("\n")).hasLength(20_000);
+	}
+
+	@Test
+	public void testTooManyNames() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (BinaryTraceLog trace = new BinaryTraceLog(output, 2)) {
+			trace.log("A");
+			trace.log("B");
+			trace.log("C");
+			trace.log("D");
+			trace.log("A");
+		}
+		String text = BinaryTraceLog.toText(output.toByteArray(), Mode.EPOCH);
+		assertThat(text.replaceAll("\\d{4} ms ", "")).isEqualTo("A\nB\n(too many names)\n(too many names)\nA\n");
+	}
+
+	@Test
+	public void testChromeJsonAndStepProfiler() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryTraceLog trace = new BinaryTraceLog(output);
+		StepProfiler profiler = new StepProfiler(LapTimer.createNanoWrap2Sec(), "my.");
+		profiler.traceTo(trace);
+		profiler.startStep("init");
+		profiler.startStep("run \"quoted\"");
+		profiler.finish();
+		ThreadHarness.createAndRun(() -> trace.log("other thread"));
+		trace.close();
+
+		String json = BinaryTraceLog.toChromeJson(output.toByteArray());
+		long thisThread = Thread.currentThread().getId();
+		assertThat(json).startsWith("{\"traceEvents\":[\n{\"name\":\"my.init\",\"ph\":\"B\",\"ts\":");
+		assertThat(json).contains(",\"pid\":1,\"tid\":" + thisThread + "},\n{\"name\":\"my.init\",\"ph\":\"E\",\"ts\":");
+		assertThat(json).contains("{\"name\":\"my.run \\\"quoted\\\"\",\"ph\":\"B\"");
+		assertThat(json).contains("{\"name\":\"other thread\",\"ph\":\"i\",\"ts\":");
+		assertThat(json).doesNotContain(",\"tid\":" + thisThread + ",\"s\":\"t\"}");
+		assertThat(json).endsWith("}\n]}\n");
+	}
+
+	@Test
+	public void testStepFinishedOnAnotherThread() throws InterruptedException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryTraceLog trace = new BinaryTraceLog(output);
+		StepProfiler profiler = new StepProfiler(LapTimer.createNanoWrap2Sec());
+		profiler.traceTo(trace);
+		profiler.startStep("handoff");
+		Thread finisher = new Thread(profiler::finish);
+		finisher.start();
+		finisher.join();
+		trace.close();
+
+		// the end is on the thread which began the span, not the one which finished it
+		List<BinaryTraceLog.Event> events = new ArrayList<>();
+		BinaryTraceLog.decode(output.toByteArray(), events);
+		assertThat(events).hasSize(2);
+		assertThat(events.get(0).threadId).isEqualTo(Thread.currentThread().getId());
+		assertThat(events.get(1).threadId).isEqualTo(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BufferedFileLoggerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testFlushEveryBytes() throws IOException {
+		File file = folder.newFile("log.txt");
+		try (BufferedFileLogger logger = DebugFileLogger.writeToBuffered(file, 1024, 60_000, 1 << 20, 1)) {
+			logger.println("short");
+			assertThat(read(file)).isEmpty();
+			// overflow the buffer
+			for (int i = 0; i < 200; ++i) {
+				logger.println("line " + i);
+			}
+			assertThat(read(file)).startsWith("LOG START: ");
+			assertThat(read(file)).contains("\nshort\nline 0\nline 1\n");
+			assertThat(read(file)).doesNotContain("line 199");
+		}
+		assertThat(read(file)).endsWith("\nline 198\nline 199\n");
+	}
+
+	@Test
+	public void testFlushEveryMs() throws IOException, InterruptedException {
+		File file = folder.newFile("log.txt");
+		try (BufferedFileLogger logger = DebugFileLogger.writeToBuffered(file, 1024, 50, 1 << 20, 1)) {
+			logger.asStringPrinter().println("\u00b5s are multibyte");
+			assertThat(read(file)).isEmpty();
+			// the daemon thread writes it out while we're idle
+			long start = System.currentTimeMillis();
+			while (read(file).isEmpty() && System.currentTimeMillis() - start < 2_000) {
+				Thread.sleep(10);
+			}
+			assertThat(read(file)).endsWith("\n\u00b5s are multibyte\n");
+		}
+	}
+
+	@Test
+	public void testRoll() throws IOException {
+		File file = folder.newFile("log.txt");
+		try (BufferedFileLogger logger = DebugFileLogger.writeToBuffered(file, 64, 60_000, 200, 2)) {
+			for (int i = 0; i < 100; ++i) {
+				logger.println(String.format("line %03d", i));
+			}
+		}
+		File rolled1 = new File(file.getParentFile(), "log.txt.1");
+		File rolled2 = new File(file.getParentFile(), "log.txt.2");
+		assertThat(new File(file.getParentFile(), "log.txt.3").exists()).isFalse();
+		// each file is about 200 bytes, and they're in order
+		for (File each : new File[]{rolled2, rolled1}) {
+			assertThat(each.length()).isAtLeast(200L);
+			assertThat(each.length()).isLessThan(200L + 64 + 64);
+			assertThat(read(each)).startsWith("LOG START: ");
+		}
+		assertThat(read(file)).endsWith("line 099\n");
+		String all = read(rolled2) + read(rolled1) + read(file);
+		int lastIndex = -1;
+		for (int i = 0; i < 100; ++i) {
+			int index = all.indexOf(String.format("line %03d", i));
+			if (index >= 0) {
+				assertThat(index).isGreaterThan(lastIndex);
+				lastIndex = index;
+			}
+		}
+	}
+
+	@Test
+	public void testPrintAfterClose() throws IOException {
+		File file = folder.newFile("log.txt");
+		BufferedFileLogger logger = DebugFileLogger.writeToBuffered(file);
+		logger.println("before");
+		logger.close();
+		logger.println("after");
+		logger.close();
+		assertThat(read(file)).endsWith("\nbefore\n");
+	}
+
+	@Test
+	public void testUnclosedLoggersAreNotKeptAlive() throws IOException, InterruptedException {
+		BufferedFileLogger closed = DebugFileLogger.writeToBuffered(folder.newFile("closed.txt"));
+		closed.close();
+		WeakReference<BufferedFileLogger> unclosed = new WeakReference<>(DebugFileLogger.writeToBuffered(folder.newFile("unclosed.txt"), 1024, 10, 1 << 20, 1));
+		synchronized (BufferedFileLogger.OPEN) {
+			assertThat(BufferedFileLogger.OPEN).doesNotContain(closed);
+		}
+		// neither the shutdown hook nor the flusher keeps it alive
+		for (int i = 0; i < 100 && unclosed.get() != null; ++i) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertThat(unclosed.get()).isNull();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.diffplug.common.base.StringPrinter;
+
+public class DedupStackDumperTest {
+	StringPrinter cleanSysErr;
+	StringBuilder dumped = new StringBuilder();
+	AtomicLong nanos = new AtomicLong();
+
+	@Before
+	public void captureDumps() {
+		cleanSysErr = StackDumper.pristineSysErr;
+		StackDumper.pristineSysErr = new StringPrinter(dumped::append);
+	}
+
+	@After
+	public void restoreDumps() {
+		StackDumper.pristineSysErr = cleanSysErr;
+	}
+
+	private int numDumps() {
+		return dumped.toString().split("\\+----------\\\\", -1).length - 1;
+	}
+
+	private static void dumpFromA(DedupStackDumper dumper) {
+		dumper.dump("msg");
+	}
+
+	private static void dumpFromB(DedupStackDumper dumper) {
+		dumper.dump("msg");
+	}
+
+	@Test
+	public void testDedup() {
+		DedupStackDumper dumper = new DedupStackDumper(1, 10, 1, TimeUnit.MINUTES, 10, DedupStackDumper.DEFAULT_MAX_STACKS, nanos::get);
+		for (int i = 0; i < 1000; ++i) {
+			dumpFromA(dumper);
+			dumpFromB(dumper);
+		}
+		Assert.assertEquals(2, numDumps());
+		assertThat(dumped.toString()).contains("| at com.diffplug.common.debug.DedupStackDumperTest.dumpFromA(");
+		assertThat(dumped.toString()).contains("| at com.diffplug.common.debug.DedupStackDumperTest.dumpFromB(");
+		Assert.assertEquals(2000, dumper.getCount("msg"));
+		Assert.assertEquals(0, dumper.getCount("other"));
+
+		String summary = dumper.summary();
+		assertThat(summary).startsWith("DedupStackDumper: 2000 dumps of 2 distinct stacks\n1000x msg\nat ");
+		assertThat(summary).contains("\n1000x msg\nat com.diffplug.common.debug.DedupStackDumperTest.dumpFromB(");
+	}
+
+	@Test
+	public void testRateLimit() {
+		DedupStackDumper dumper = new DedupStackDumper(1, 2, 1, TimeUnit.HOURS, 10, DedupStackDumper.DEFAULT_MAX_STACKS, nanos::get);
+		// each message is a distinct entry, but only the burst is printed
+		for (int i = 0; i < 5; ++i) {
+			dumper.dump("msg" + i);
+		}
+		Assert.assertEquals(2, numDumps());
+		// after a second, one more token is available
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		dumper.dump("msg2");
+		Assert.assertEquals(3, numDumps());
+		assertThat(dumped.toString()).contains("| msg2 (3 dumps suppressed by the rate limit)\n");
+		// the suppressed stacks are printed once tokens are available
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(10));
+		dumper.dump("msg3");
+		dumper.dump("msg3");
+		dumper.dump("msg4");
+		Assert.assertEquals(5, numDumps());
+	}
+
+	@Test
+	public void testPeriodicSummary() {
+		DedupStackDumper dumper = new DedupStackDumper(1, 10, 1, TimeUnit.SECONDS, 1, DedupStackDumper.DEFAULT_MAX_STACKS, nanos::get);
+		for (int i = 0; i < 3; ++i) {
+			if (i == 2) {
+				nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+			}
+			dumpFromA(dumper);
+			if (i == 0) {
+				dumpFromB(dumper);
+			}
+		}
+		Assert.assertEquals(3, numDumps());
+		assertThat(dumped.toString()).contains("| DedupStackDumper: 4 dumps of 2 distinct stacks\n| 3x msg\n| at com.diffplug.common.debug.DedupStackDumperTest.dumpFromA(");
+		// only the top 1 is in the summary
+		assertThat(dumper.summary()).doesNotContain("dumpFromB");
+	}
+
+	@Test
+	public void testTrigger() {
+		DedupStackDumper dumper = new DedupStackDumper(1, 10, 1, TimeUnit.MINUTES, 10, DedupStackDumper.DEFAULT_MAX_STACKS, nanos::get);
+		StringBuilder passedThrough = new StringBuilder();
+		PrintStream stream = dumper.wrapAndDumpWhenContains(new StringPrinter(passedThrough::append).toPrintStream(), "junk");
+		for (int i = 0; i < 100; ++i) {
+			stream.println("some junk");
+		}
+		Assert.assertEquals(1, numDumps());
+		assertThat(dumped.toString()).startsWith("+----------\\\n| Triggered by junk\n");
+		Assert.assertEquals(100, dumper.getCount("Triggered by junk"));
+		assertThat(passedThrough.toString()).startsWith("some junk");
+	}
+
+	@Test
+	public void testEviction() {
+		DedupStackDumper dumper = new DedupStackDumper(1, 10, 1, TimeUnit.MINUTES, 10, 3, nanos::get);
+		for (int i = 0; i < 5; ++i) {
+			dumper.dump("heavy");
+		}
+		for (int i = 0; i < 100; ++i) {
+			dumper.dump("once" + i);
+		}
+		// the heavy hitter survives, and only 3 stacks are kept
+		Assert.assertEquals(5, dumper.getCount("heavy"));
+		Assert.assertEquals(1, dumper.getCount("once99"));
+		Assert.assertEquals(0, dumper.getCount("once0"));
+		assertThat(dumper.summary()).startsWith("DedupStackDumper: 105 dumps of 3 distinct stacks (98 stacks with 98 dumps evicted)\n5x heavy\n");
+	}
+}
@@ -17,6 +17,8 @@ package com.diffplug.common.debug;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 import com.diffplug.common.debug.Histogram;
@@ -49,4 +51,98 @@ public class HistogramTest {
 						"E: 2500\n" +
 						"D: 2000\n");
 	}
+
+	@Test
+	public void testOnlyWinnersAreStringified() {
+		Histogram<Integer> histogram = new Histogram<>();
+		for (int i = 0; i < 10_000; ++i) {
+			histogram.add(i, i);
+		}
+		AtomicInteger numToString = new AtomicInteger();
+		String top = histogram.getTopValues(2, key -> {
+			numToString.incrementAndGet();
+			return "key" + key;
+		});
+		assertThat(top).isEqualTo(
+				"key9999: 9999\n" +
+						"key9998: 9998\n");
+		assertThat(numToString.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testTrackTopValues() {
+		Histogram<String> tracked = new Histogram<>();
+		Histogram<String> scanned = new Histogram<>();
+		// some counts before tracking starts, and some after
+		for (int i = 0; i < 2_000; ++i) {
+			if (i == 1_000) {
+				tracked.trackTopValues(5);
+			}
+			String key = "K" + (i * 7919 % 97) % 30;
+			tracked.add(key, i % 13);
+			scanned.add(key, i % 13);
+		}
+		assertThat(tracked.getTopValues(5)).isEqualTo(scanned.getTopValues(5));
+		assertThat(tracked.getTopValues(3)).isEqualTo(scanned.getTopValues(3));
+		// asking for more than are tracked falls back to a full scan
+		assertThat(tracked.getTopValues(10)).isEqualTo(scanned.getTopValues(10));
+	}
+
+	@Test
+	public void testTrackTopValuesConcurrently() throws InterruptedException {
+		for (int round = 0; round < 20; ++round) {
+			Histogram<Integer> tracked = new Histogram<>();
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; ++t) {
+				int seed = t;
+				threads[t] = new Thread(() -> {
+					for (int i = 0; i < 20_000; ++i) {
+						// many keys which grow at similar rates, so the cutoff churns
+						int key = (i * 31 + seed * 7) % 40;
+						tracked.add(key, 1 + key % 8);
+					}
+				});
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			tracked.trackTopValues(5);
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			// once quiet, the ranking must agree with a full scan
+			Histogram<Integer> scanned = new Histogram<>();
+			tracked.forEach(scanned::add);
+			assertThat(tracked.getTopValues(5)).isEqualTo(scanned.getTopValues(5));
+		}
+	}
+
+	@Test
+	public void testTiesAreDeterministic() {
+		// ties at the cutoff go to the larger label, no matter the insertion order
+		for (String order : new String[]{"ABCDE", "EDCBA", "CAEBD"}) {
+			Histogram<String> histogram = new Histogram<>();
+			histogram.add("Z", 10);
+			for (char c : order.toCharArray()) {
+				histogram.add(Character.toString(c), 5);
+			}
+			assertThat(histogram.getTopValues(3)).isEqualTo("Z: 10\nE: 5\nD: 5\n");
+
+			Histogram<String> tracked = new Histogram<>();
+			tracked.trackTopValues(3);
+			tracked.add("Z", 10);
+			for (char c : order.toCharArray()) {
+				tracked.add(Character.toString(c), 5);
+			}
+			assertThat(tracked.getTopValues(3)).isEqualTo("Z: 10\nE: 5\nD: 5\n");
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoNegativeWhileTracking() {
+		Histogram<String> histogram = new Histogram<>();
+		histogram.add("A", -1);
+		histogram.trackTopValues(3);
+		histogram.add("A", -1);
+	}
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class IntHistogramTest {
+	@Test
+	public void testEmpty() {
+		IntHistogram histogram = new IntHistogram();
+		assertThat(histogram.getTopValues(3)).isEqualTo("");
+		assertThat(histogram.get(5)).isEqualTo(0);
+	}
+
+	@Test
+	public void testFull() {
+		IntHistogram histogram = new IntHistogram();
+		histogram.add(1, 500);
+		histogram.add(2, 1000);
+		histogram.add(3, 1500);
+		histogram.add(4, 2000);
+		histogram.add(Integer.MIN_VALUE, 2500);
+		histogram.add(0, 3000);
+		assertThat(histogram.getTopValues(3)).isEqualTo(
+				"0          : 3000\n" +
+						"-2147483648: 2500\n" +
+						"4          : 2000\n");
+		assertThat(histogram.getTopValues(1, key -> "status " + key)).isEqualTo("status 0: 3000\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegative() {
+		new IntHistogram().add(1, -1);
+	}
+
+	@Test
+	public void testSaturates() {
+		IntHistogram histogram = new IntHistogram();
+		histogram.add(1, Integer.MAX_VALUE - 1);
+		assertThat(histogram.add(1, 5)).isEqualTo(Integer.MAX_VALUE);
+		assertThat(histogram.increment(1)).isEqualTo(Integer.MAX_VALUE);
+		assertThat(histogram.getTopValues(1)).isEqualTo("1: 2147483647\n");
+	}
+
+	@Test
+	public void testConcurrentGrowth() {
+		IntHistogram histogram = new IntHistogram();
+		int numKeys = 10_000;
+		Runnable incrementAll = () -> {
+			for (int key = 0; key < numKeys; ++key) {
+				histogram.increment(key);
+			}
+		};
+		ThreadHarness.createAndRun(incrementAll::run, incrementAll::run, incrementAll::run, incrementAll::run);
+		for (int key = 0; key < numKeys; ++key) {
+			assertThat(histogram.get(key)).isEqualTo(4);
+		}
+		assertThat(histogram.increment(42)).isEqualTo(5);
+	}
+}
@@ -54,6 +54,122 @@ public class JuxtaProfilerTest {
 		assertThat(medianB).isIn(Range.closed(15, 25));
 	}
 
+	@Test
+	public void runForkedTrials() throws Throwable {
+		JuxtaProfiler profiler = new JuxtaProfiler();
+		profiler.addTestForked("A", FixedTime.class);
+		profiler.addTestMs("B", () -> Thread.sleep(1));
+
+		String captured = captureSysOut(() -> profiler.runForkedTrials(2, 3, 4));
+		String[] lines = captured.split(System.lineSeparator());
+		assertThat(lines[0]).isEqualTo("Skipping B, it must be added with addTestForked to run in a child JVM.");
+		assertThat(lines[lines.length - 2]).startsWith("Running fork 2 of 2 ...  complete after ");
+		assertThat(lines[lines.length - 1]).isEqualTo("A: median=100ms mean=100ms min=100ms max=100ms num=8");
+	}
+
+	@Test
+	public void trackAllocations() throws Throwable {
+		JuxtaProfiler profiler = new JuxtaProfiler();
+		profiler.trackAllocations();
+		profiler.trackCpuTime();
+		profiler.addTest("A", new JuxtaProfiler.InitTimedCleanup(LapTimer.createNanoWrap2Sec()) {
+			long[] array;
+
+			@Override
+			protected void init() {
+				// allocations in init aren't counted
+				array = new long[1024 * 1024];
+			}
+
+			@Override
+			protected void timed() {
+				array = new long[128 * 1024];
+			}
+
+			@Override
+			protected void cleanup() {}
+		});
+		profiler.addBenchmark("B", blackhole -> blackhole.consume(new byte[1000]));
+
+		String captured = captureSysOut(() -> profiler.runRandomTrials(3));
+		String[] lines = captured.split(System.lineSeparator());
+		assertThat(lines[lines.length - 1]).matches("A: .* num=3 cpu=\\S+ \\S+/trial \\(\\d+% of wall, \\d+% user\\) alloc=1\\.00 MB/trial gc=\\d+ \\(\\d+ ms\\)");
+
+		captured = captureSysOut(() -> profiler.runBenchmarks(1, 2, 0.01));
+		lines = captured.split(System.lineSeparator());
+		assertThat(lines[lines.length - 1]).matches("B: .* fastest cpu=\\S+ \\S+/op \\(\\d+% of wall, \\d+% user\\) alloc=\\S+ KB/op gc=\\d+ \\(\\d+ ms\\)");
+	}
+
+	/** Pretends to take 100ms, and prints to System.out to make sure it doesn't corrupt the samples. */
+	public static class FixedTime implements JuxtaProfiler.ITimed {
+		@Override
+		public double time() {
+			System.out.println("noise");
+			return 0.1;
+		}
+	}
+
+	@Test
+	public void runBenchmarks() throws Throwable {
+		JuxtaProfiler profiler = new JuxtaProfiler();
+		profiler.addBenchmark("fast", blackhole -> blackhole.consume(sum(10)));
+		profiler.addBenchmark("slow", blackhole -> blackhole.consume(sum(10_000)));
+
+		String captured = captureSysOut(() -> profiler.runBenchmarks(2, 5, 0.01));
+		String[] lines = captured.split(System.lineSeparator());
+		String fast = lines[lines.length - 2];
+		String slow = lines[lines.length - 1];
+		assertThat(fast).startsWith("fast: ");
+		assertThat(fast).endsWith("(99% CI, n=5) fastest");
+		assertThat(slow).startsWith("slow: ");
+		// a single GC pause can widen the interval, so only the ratio is checked reliably
+		assertThat(slow).matches(".* x\\S+ vs fastest, p=\\S+ \\((not )?significant\\)");
+		double ratio = Double.parseDouble(slow.substring(slow.indexOf(" x") + 2, slow.indexOf(" vs fastest")));
+		assertThat(ratio).isGreaterThan(10.0);
+	}
+
+	@Test
+	public void runThroughput() throws Throwable {
+		JuxtaProfiler profiler = new JuxtaProfiler();
+		profiler.addBenchmark("independent", blackhole -> blackhole.consume(sum(100)));
+		Object lock = new Object();
+		profiler.addBenchmark("contended", blackhole -> {
+			synchronized (lock) {
+				blackhole.consume(sum(100));
+			}
+		});
+
+		String captured = captureSysOut(() -> profiler.runThroughput(3, 0.05));
+		String[] lines = captured.split(System.lineSeparator());
+		assertThat(lines[0]).isEqualTo("Warming up ...");
+		assertThat(lines[1]).isEqualTo("Running on 1 thread ...");
+		assertThat(lines[2]).isEqualTo("Running on 2 threads ...");
+		assertThat(lines[3]).isEqualTo("Running on 3 threads ...");
+		assertThat(lines[4]).matches("independent: 1T=\\S+ \\S*ops/s, 2T=\\S+ \\S*ops/s \\(\\d+%\\), 3T=\\S+ \\S*ops/s \\(\\d+%\\)");
+		assertThat(lines[5]).startsWith("contended: 1T=");
+	}
+
+	@Test
+	public void formatOpsPerSec() {
+		assertThat(JuxtaProfiler.formatOpsPerSec(12.5)).isEqualTo("12.5 ops/s");
+		assertThat(JuxtaProfiler.formatOpsPerSec(2_500_000)).isEqualTo("2.50 Mops/s");
+	}
+
+	private static long sum(int upTo) {
+		long sum = 0;
+		for (int i = 0; i < upTo; ++i) {
+			sum += i * (long) i;
+		}
+		return sum;
+	}
+
+	@Test
+	public void formatPerOp() {
+		assertThat(JuxtaProfiler.formatPerOp(2.5)).isEqualTo("2.50 s/op");
+		assertThat(JuxtaProfiler.formatPerOp(0.0125)).isEqualTo("12.5 ms/op");
+		assertThat(JuxtaProfiler.formatPerOp(3.14159e-9)).isEqualTo("3.14 ns/op");
+	}
+
 	private String captureSysOut(Throwing.Runnable toRun) throws Throwable {
 		PrintStream sysOut = System.out;
 		try {
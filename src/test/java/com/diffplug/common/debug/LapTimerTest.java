@@ -37,4 +37,114 @@ public class LapTimerTest {
 		double elapsed = timer.lap();
 		assertThat(elapsed).isWithin(0.01).of(0.05);
 	}
+
+	@Test
+	public void testSingleThread() throws InterruptedException {
+		// compare against the real clock, because a sleep can overshoot on a busy machine
+		LapTimer timer = LapTimer.createSingleThreadNanos();
+		long start = System.nanoTime();
+		Thread.sleep(50);
+		double first = timer.lap();
+		long middle = System.nanoTime();
+		Thread.sleep(20);
+		double second = timer.lap();
+		long end = System.nanoTime();
+		assertThat(first).isWithin(0.001).of((middle - start) * 1e-9);
+		assertThat(second).isWithin(0.001).of((end - middle) * 1e-9);
+		assertThat(first).isAtLeast(0.05);
+		assertThat(second).isAtLeast(0.02);
+	}
+
+	@Test
+	public void testCalibrated() throws InterruptedException {
+		LapTimer timer = LapTimer.createCalibratedNanos();
+		long start = System.nanoTime();
+		Thread.sleep(50);
+		double lap = timer.lap();
+		double wall = (System.nanoTime() - start) * 1e-9;
+		// compare against the real clock, because a sleep can overshoot on a busy machine
+		assertThat(lap).isWithin(0.001).of(wall);
+		assertThat(lap).isAtLeast(0.049);
+		// an empty lap is about zero (except for the occasional interrupt), and never negative
+		int numUnderMicrosecond = 0;
+		for (int i = 0; i < 1000; ++i) {
+			timer.lap();
+			double emptyLap = timer.lap();
+			assertThat(emptyLap).isAtLeast(0.0);
+			if (emptyLap < 1e-6) {
+				++numUnderMicrosecond;
+			}
+		}
+		assertThat(numUnderMicrosecond).isAtLeast(900);
+	}
+
+	@Test
+	public void testCachedMs() throws InterruptedException {
+		LapTimer timer = LapTimer.createCachedMs();
+		long start = System.nanoTime();
+		Thread.sleep(50);
+		double lap = timer.lap();
+		double wall = (System.nanoTime() - start) * 1e-9;
+		// the cached clock lags by about a tick at each end
+		assertThat(lap).isWithin(0.01).of(wall);
+		assertThat(lap).isAtLeast(0.045);
+	}
+
+	@Test
+	public void testCalibration() {
+		ClockCalibration calibration = ClockCalibration.get();
+		assertThat(calibration.getGranularityNanos()).isGreaterThan(0.0);
+		assertThat(calibration.getOverheadNanos()).isAtLeast(0.0);
+		assertThat(calibration.getOverheadNanos()).isLessThan(10_000.0);
+		assertThat(calibration.toString()).matches("nanoTime granularity=\\d+ ns, overhead=\\S+ ns per lap");
+	}
+
+	@Test
+	public void testCpu() throws InterruptedException {
+		LapTimer cpu = LapTimer.createCpuNanos();
+		LapTimer user = LapTimer.createUserNanos();
+		LapTimer system = LapTimer.createSystemNanos();
+		// sleeping takes no cpu
+		Thread.sleep(50);
+		assertThat(cpu.lap()).isLessThan(0.02);
+		user.lap();
+		system.lap();
+
+		// spinning takes cpu, though the wall time might be longer on a busy machine
+		LapTimer wall = LapTimer.createNanoWrap2Sec();
+		long start = JvmMetrics.threadCpuNanos();
+		while (JvmMetrics.threadCpuNanos() - start < 100_000_000) {}
+		double cpuElapsed = cpu.lap();
+		double wallElapsed = wall.lap();
+		double userElapsed = user.lap();
+		double systemElapsed = system.lap();
+		assertThat(cpuElapsed).isWithin(0.02).of(0.1);
+		assertThat(cpuElapsed).isLessThan(wallElapsed + 0.02);
+		assertThat(userElapsed + systemElapsed).isWithin(0.01).of(cpuElapsed);
+	}
+
+	@Test
+	public void testCpuPerThread() throws InterruptedException {
+		LapTimer cpu = LapTimer.createCpuNanos();
+		LapTimer system = LapTimer.createSystemNanos();
+		// burn cpu on this thread, then lap on a fresh thread
+		long start = JvmMetrics.threadCpuNanos();
+		while (JvmMetrics.threadCpuNanos() - start < 100_000_000) {}
+		double[] otherThread = new double[2];
+		Thread thread = new Thread(() -> {
+			otherThread[0] = cpu.lap();
+			otherThread[1] = system.lap();
+		});
+		thread.start();
+		thread.join();
+		// the other thread measures only its own clock, not the 100ms burned here
+		assertThat(otherThread[0]).isLessThan(0.01);
+		assertThat(otherThread[1]).isLessThan(0.01);
+		// and this thread measures from its own first lap
+		cpu.lap();
+		for (int i = 0; i < 1000; ++i) {
+			assertThat(system.lap()).isAtLeast(0.0);
+		}
+		assertThat(cpu.lap()).isAtLeast(0.0);
+	}
 }
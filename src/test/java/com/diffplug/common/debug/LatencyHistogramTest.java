@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	public void testEmpty() {
+		LatencyHistogram histogram = LatencyHistogram.create(3);
+		assertThat(histogram.getCount()).isEqualTo(0);
+		assertThat(histogram.getStat().toString()).isEqualTo("No samples yet");
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = LatencyHistogram.create(3);
+		// 1us to 10ms
+		for (int i = 1; i <= 10_000; ++i) {
+			histogram.recordNanos(i * 1000L);
+		}
+		assertThat(histogram.getCount()).isEqualTo(10_000);
+		RunningStats.Stat stat = histogram.getStat();
+		assertThat(stat.num).isEqualTo(10_000);
+		assertThat(stat.min).isWithin(1e-9).of(1e-6);
+		assertThat(stat.max).isWithin(0.001 * 10e-3).of(10e-3);
+		assertThat(stat.median).isWithin(0.001 * 5e-3).of(5e-3);
+		assertThat(stat.p90).isWithin(0.001 * 9e-3).of(9e-3);
+		assertThat(stat.p99).isWithin(0.001 * 9.9e-3).of(9.9e-3);
+		assertThat(stat.p999).isWithin(0.001 * 9.99e-3).of(9.99e-3);
+		assertThat(stat.mean).isWithin(0.001 * 5.0005e-3).of(5.0005e-3);
+		assertThat(histogram.getQuantile(0.5)).isEqualTo(stat.median);
+	}
+
+	@Test
+	public void testClamped() {
+		LatencyHistogram histogram = new LatencyHistogram(1000, 2);
+		histogram.recordNanos(-5);
+		histogram.recordNanos(1_000_000);
+		histogram.record(Double.NaN);
+		RunningStats.Stat stat = histogram.getStat();
+		assertThat(stat.num).isEqualTo(3);
+		assertThat(stat.min).isEqualTo(0.0);
+		assertThat(stat.max).isWithin(0.01 * 1000e-9).of(1000e-9);
+	}
+
+	@Test
+	public void testMergeAndSerialize() {
+		LatencyHistogram a = LatencyHistogram.create(2);
+		LatencyHistogram b = LatencyHistogram.create(2);
+		for (int i = 0; i < 100; ++i) {
+			a.record(0.001);
+			b.record(0.002);
+		}
+		LatencyHistogram merged = a.snapshot();
+		merged.addAll(b);
+		assertThat(a.getCount()).isEqualTo(100);
+		assertThat(merged.getCount()).isEqualTo(200);
+		assertThat(merged.getQuantile(0.25)).isWithin(0.01 * 0.001).of(0.001);
+		assertThat(merged.getQuantile(0.75)).isWithin(0.01 * 0.002).of(0.002);
+
+		byte[] bytes = merged.toBytes();
+		assertThat(bytes.length).isLessThan(32);
+		LatencyHistogram parsed = LatencyHistogram.fromBytes(bytes);
+		assertThat(parsed.toString()).isEqualTo(merged.toString());
+		assertThat(parsed.toBytes()).isEqualTo(bytes);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMergeMismatch() {
+		LatencyHistogram.create(2).addAll(LatencyHistogram.create(3));
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.diffplug.common.base.StringPrinter;
+
+public class LockContentionSamplerTest {
+	StringPrinter cleanSysErr;
+	StringBuilder dumped = new StringBuilder();
+
+	@Before
+	public void captureDumps() {
+		cleanSysErr = StackDumper.pristineSysErr;
+		StackDumper.pristineSysErr = new StringPrinter(dumped::append);
+	}
+
+	@After
+	public void restoreDumps() {
+		StackDumper.pristineSysErr = cleanSysErr;
+	}
+
+	static volatile boolean holding;
+
+	static void holdMonitor(Object monitor, CountDownLatch locked) {
+		synchronized (monitor) {
+			locked.countDown();
+			while (holding) {
+				Thread.yield();
+			}
+		}
+	}
+
+	static void holdLock(ReentrantLock lock, CountDownLatch locked) {
+		lock.lock();
+		try {
+			locked.countDown();
+			while (holding) {
+				Thread.yield();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Runs the given contention (an owner, and a thread which contends with it), and returns the sampler. */
+	private static LockContentionSampler sample(Runnable owner, Runnable contender, CountDownLatch locked) throws InterruptedException {
+		holding = true;
+		Thread ownerThread = new Thread(owner);
+		ownerThread.start();
+		locked.await();
+		Thread contenderThread = new Thread(contender);
+		contenderThread.start();
+		try (LockContentionSampler sampler = LockContentionSampler.create(1, TimeUnit.MILLISECONDS)) {
+			sampler.start();
+			while (sampler.getNumSamples() < 20) {
+				Thread.sleep(10);
+			}
+			sampler.stop();
+			return sampler;
+		} finally {
+			holding = false;
+			ownerThread.join();
+			contenderThread.join();
+		}
+	}
+
+	@Test
+	public void testMonitor() throws InterruptedException {
+		Object monitor = new Object();
+		CountDownLatch locked = new CountDownLatch(1);
+		LockContentionSampler sampler = sample(() -> holdMonitor(monitor, locked), () -> {
+			synchronized (monitor) {}
+		}, locked);
+		String lockName = "java.lang.Object@" + Integer.toHexString(System.identityHashCode(monitor));
+		String formatted = sampler.format(5);
+		assertThat(formatted).startsWith("Thread states (samples):\n");
+		assertThat(formatted).containsMatch("BLOCKED *: \\d+\n");
+		assertThat(formatted).containsMatch("Contended locks \\(ms\\):\n" + lockName + ": \\d+\nWaited-on locks");
+
+		sampler.dumpTopOwners(1);
+		assertThat(dumped.toString()).containsMatch("^\\+----------\\\\\n\\| \\d+ms contending for " + lockName + " \\(locked at com\\.diffplug\\.common\\.debug\\.LockContentionSamplerTest\\.holdMonitor\\(LockContentionSamplerTest\\.java:\\d+\\)\\), while the owner was\n");
+		assertThat(dumped.toString()).contains("| at com.diffplug.common.debug.LockContentionSamplerTest.holdMonitor(");
+	}
+
+	@Test
+	public void testReentrantLock() throws InterruptedException {
+		ReentrantLock lock = new ReentrantLock();
+		CountDownLatch locked = new CountDownLatch(1);
+		LockContentionSampler sampler = sample(() -> holdLock(lock, locked), () -> {
+			lock.lock();
+			lock.unlock();
+		}, locked);
+		// the contender is parked rather than blocked, but it still counts as contention because the lock has an owner
+		assertThat(sampler.format(5)).containsMatch("Contended locks \\(ms\\):\njava\\.util\\.concurrent\\.locks\\.ReentrantLock\\$NonfairSync@[0-9a-f]+: \\d+\n");
+		sampler.dumpTopOwners(1);
+		assertThat(dumped.toString()).contains("| at com.diffplug.common.debug.LockContentionSamplerTest.holdLock(");
+	}
+
+	@Test
+	public void testCreditsTimeSinceLastSample() throws InterruptedException {
+		Object monitor = new Object();
+		CountDownLatch locked = new CountDownLatch(1);
+		holding = true;
+		Thread ownerThread = new Thread(() -> holdMonitor(monitor, locked));
+		ownerThread.start();
+		locked.await();
+		Thread contenderThread = new Thread(() -> {
+			synchronized (monitor) {}
+		});
+		contenderThread.start();
+		try {
+			while (contenderThread.getState() != Thread.State.BLOCKED) {
+				Thread.sleep(1);
+			}
+			LockContentionSampler sampler = LockContentionSampler.create(1, TimeUnit.MILLISECONDS);
+			// a sample which took longer than the interval is credited in full, and fractions of a ms carry over
+			long self = Thread.currentThread().getId();
+			sampler.sample(self, TimeUnit.MICROSECONDS.toNanos(1500));
+			sampler.sample(self, TimeUnit.MICROSECONDS.toNanos(1500));
+			sampler.sample(self, TimeUnit.MILLISECONDS.toNanos(20));
+			String lockName = "java.lang.Object@" + Integer.toHexString(System.identityHashCode(monitor));
+			assertThat(sampler.format(5)).contains("Contended locks (ms):\n" + lockName + ": 23\n");
+		} finally {
+			holding = false;
+			ownerThread.join();
+			contenderThread.join();
+		}
+	}
+}
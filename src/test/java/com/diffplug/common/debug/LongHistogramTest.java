@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class LongHistogramTest {
+	@Test
+	public void testFull() {
+		LongHistogram histogram = new LongHistogram();
+		for (long shard = 0; shard < 100; ++shard) {
+			histogram.add(shard << 40, (int) shard);
+		}
+		assertThat(histogram.increment(99L << 40)).isEqualTo(100);
+		assertThat(histogram.get(1L << 40)).isEqualTo(1);
+		assertThat(histogram.get(1)).isEqualTo(0);
+		assertThat(histogram.getTopValues(2, key -> "shard " + (key >>> 40))).isEqualTo(
+				"shard 99: 100\n" +
+						"shard 98: 98\n");
+	}
+}
@@ -20,6 +20,8 @@ import static com.google.common.truth.Truth.assertThat;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.stream.Collectors;
 
 import org.junit.Test;
@@ -47,6 +49,111 @@ public class ProfileLoggerTest {
 		assertThat(epoch).containsExactly(0, 1, 2, 3);
 	}
 
+	@Test
+	public void testAsyncModeDelta() {
+		assertThat(asyncTestCase(Mode.DELTA)).containsExactly(0, 1, 1, 1);
+	}
+
+	@Test
+	public void testAsyncModeEpoch() {
+		assertThat(asyncTestCase(Mode.EPOCH)).containsExactly(0, 1, 2, 3);
+	}
+
+	@Test
+	public void testAsyncModeOff() {
+		assertThat(asyncTestCase(Mode.OFF)).isEmpty();
+	}
+
+	@Test
+	public void testAsyncModeIsCapturedWhenLogged() {
+		String complete = StringPrinter.buildString(printer -> {
+			try (AsyncProfileLogger logger = AsyncProfileLogger.create(printer, Mode.EPOCH, 16, AsyncProfileLogger.Overflow.DROP)) {
+				logger.log("before");
+				logger.setMode(Mode.OFF);
+				logger.log("after");
+			}
+		});
+		// the message which was logged before turning off is still printed
+		assertThat(complete).endsWith(" ms before\n");
+		assertThat(complete).doesNotContain("after");
+	}
+
+	@Test
+	public void testAsyncOverflow() throws InterruptedException {
+		for (AsyncProfileLogger.Overflow overflow : AsyncProfileLogger.Overflow.values()) {
+			CountDownLatch started = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			List<String> printed = new CopyOnWriteArrayList<>();
+			StringPrinter slowPrinter = new StringPrinter(str -> {
+				started.countDown();
+				Errors.rethrow().run(release::await);
+				printed.add(str);
+			});
+			AsyncProfileLogger logger = AsyncProfileLogger.create(slowPrinter, Mode.EPOCH, 8, overflow);
+			// the consumer takes the first message, then blocks in the printer
+			logger.log("first");
+			started.await();
+			Thread producer = new Thread(() -> {
+				for (int i = 0; i < 100; ++i) {
+					logger.log(Integer.toString(i));
+				}
+			});
+			producer.start();
+			if (overflow == AsyncProfileLogger.Overflow.BLOCK) {
+				producer.join(100);
+				assertThat(producer.isAlive()).isTrue();
+			} else {
+				producer.join();
+			}
+			release.countDown();
+			producer.join();
+			logger.close();
+
+			String all = String.join("", printed);
+			long numMessages = all.chars().filter(c -> c == '\n').count();
+			switch (overflow) {
+			case BLOCK:
+				assertThat(numMessages).isEqualTo(101);
+				assertThat(all).doesNotContain("dropped");
+				break;
+			case DROP:
+				// the first message, then a full buffer, then a line for the dropped messages
+				assertThat(numMessages).isEqualTo(1 + 8 + 1);
+				assertThat(all).contains("(dropped 92 log messages)");
+				break;
+			case SAMPLE:
+				// half the buffer, then every 16th until it fills up
+				assertThat(numMessages).isEqualTo(1 + 8 + 1);
+				assertThat(all).contains(" ms 3\n");
+				assertThat(all).contains(" ms 4\n");
+				assertThat(all).doesNotContain(" ms 5\n");
+				assertThat(all).contains(" ms 20\n");
+				assertThat(all).contains(" ms 52\n");
+				assertThat(all).contains("(dropped 92 log messages)");
+				break;
+			default:
+				throw new AssertionError(overflow);
+			}
+		}
+	}
+
+	/** Same as {@link #testCase(Mode)}, but with an {@link AsyncProfileLogger}. */
+	private List<Integer> asyncTestCase(Mode mode) {
+		String complete = StringPrinter.buildString(Errors.rethrow().wrap(printer -> {
+			try (AsyncProfileLogger logger = AsyncProfileLogger.create(printer, mode, 16, AsyncProfileLogger.Overflow.DROP)) {
+				logger.log("A");
+				Thread.sleep(100);
+				logger.log("B");
+				Thread.sleep(100);
+				logger.log("C");
+				Thread.sleep(100);
+				logger.log("D");
+				logger.flush();
+			}
+		}));
+		return parseTimestamps(complete);
+	}
+
 	/**
 	 * Logs out 4 events, separated by 100ms, and returns the timestamps
 	 * parsed out from the log to the nearest 100ms.  
@@ -62,6 +169,11 @@ public class ProfileLoggerTest {
 			Thread.sleep(100);
 			logger.log("D");
 		}));
+		return parseTimestamps(complete);
+	}
+
+	/** Parses the timestamps out of the log, to the nearest 100ms. */
+	private static List<Integer> parseTimestamps(String complete) {
 		String[] lines = complete.split("\n");
 		return Arrays.asList(lines).stream().map(line -> {
 			if (line.length() > 4) {
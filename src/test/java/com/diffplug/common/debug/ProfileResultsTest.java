@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ProfileResultsTest {
+	private static RunningStats.Stat stats(double... samples) {
+		RunningStats stats = new RunningStats();
+		for (double sample : samples) {
+			stats.add(sample);
+		}
+		return stats.getStat();
+	}
+
+	private static ProfileResults results(RunningStats.Stat a, RunningStats.Stat b) {
+		Map<String, RunningStats.Stat> stats = new LinkedHashMap<>();
+		stats.put("a", a);
+		stats.put("b, \"quoted\"", b);
+		return ProfileResults.create(stats);
+	}
+
+	@Test
+	public void testCsvRoundTrip() {
+		ProfileResults results = results(stats(0.1, 0.2, 0.3), new RunningStats.Stat(1, 2, 1.5, Double.NaN, 3, 2, 1));
+		String csv = results.toCsv();
+		assertThat(csv).contains("# java.version=" + System.getProperty("java.version") + "\n");
+		assertThat(csv).contains("\nname,num,numNanOrInfinite,mean,stddev,min,median,p90,p99,p999,max,total\n");
+		assertThat(csv).contains("\n\"b, \"\"quoted\"\"\",2,1,1.5,NaN,1,NaN,NaN,NaN,NaN,2,3\n");
+
+		ProfileResults parsed = ProfileResults.fromCsv(csv);
+		assertThat(parsed.getEnvironment()).isEqualTo(results.getEnvironment());
+		assertThat(parsed.getStats().keySet()).containsExactly("a", "b, \"quoted\"").inOrder();
+		RunningStats.Stat a = parsed.getStats().get("a");
+		RunningStats.Stat expected = results.getStats().get("a");
+		assertThat(a.num).isEqualTo(3);
+		assertThat(a.mean).isEqualTo(expected.mean);
+		assertThat(a.stddev).isEqualTo(expected.stddev);
+		assertThat(a.p90).isEqualTo(expected.p90);
+		assertThat(parsed.toCsv()).isEqualTo(csv);
+	}
+
+	@Test
+	public void testCsvNameLikeComment() {
+		Map<String, RunningStats.Stat> stats = new LinkedHashMap<>();
+		stats.put("# not=environment", stats(1, 2));
+		ProfileResults parsed = ProfileResults.fromCsv(ProfileResults.create(stats).toCsv());
+		assertThat(parsed.getStats().keySet()).containsExactly("# not=environment");
+		assertThat(parsed.getEnvironment()).doesNotContainKey("not");
+	}
+
+	@Test
+	public void testCsvLineBreaks() {
+		Map<String, RunningStats.Stat> stats = new LinkedHashMap<>();
+		stats.put("two\nlines", stats(1, 2));
+		stats.put("carriage\r\nreturn", stats(3));
+		String csv = ProfileResults.create(stats).toCsv();
+		assertThat(csv).contains("\n\"two\nlines\",2,");
+		ProfileResults parsed = ProfileResults.fromCsv(csv);
+		assertThat(parsed.getStats().keySet()).containsExactly("two\nlines", "carriage\r\nreturn").inOrder();
+		assertThat(parsed.getStats().get("carriage\r\nreturn").num).isEqualTo(1);
+		assertThat(parsed.toCsv()).isEqualTo(csv);
+
+		String header = "name,num,numNanOrInfinite,mean,stddev,min,median,p90,p99,p999,max,total\r\n";
+		ProfileResults environment = ProfileResults.fromCsv("# os.name=\"multi\r\nline, \"\"os\"\"\"\r\n# plain=a, \"b\"\r\n" + header);
+		assertThat(environment.getEnvironment()).containsEntry("os.name", "multi\r\nline, \"os\"");
+		assertThat(environment.getEnvironment()).containsEntry("plain", "a, \"b\"");
+		assertThat(ProfileResults.fromCsv(environment.toCsv()).getEnvironment()).isEqualTo(environment.getEnvironment());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCsvWrongHeader() {
+		ProfileResults.fromCsv("name,num,mean,numNanOrInfinite,stddev,min,median,p90,p99,p999,max,total\na,1,1,0,NaN,1,1,1,1,1,1,1\n");
+	}
+
+	@Test
+	public void testJson() {
+		String json = results(stats(1, 3), new RunningStats.Stat(1, 2, 1.5, Double.NaN, 3, 2, 1)).toJson();
+		assertThat(json).startsWith("{\n  \"environment\": {\n    \"timestamp\": ");
+		assertThat(json).contains("\"os.name\": ");
+		assertThat(json).contains("\n    \"a\": {\"num\": 2, \"numNanOrInfinite\": 0, \"mean\": 2, \"stddev\": 1.4142135623730951, \"min\": 1, \"median\": 2, ");
+		assertThat(json).contains("\n    \"b, \\\"quoted\\\"\": {\"num\": 2, \"numNanOrInfinite\": 1, \"mean\": 1.5, \"stddev\": null, ");
+		assertThat(json).endsWith("}\n  }\n}\n");
+	}
+
+	@Test
+	public void testRegressions() {
+		ProfileResults baseline = results(stats(1.0, 1.1, 0.9, 1.0, 1.05), new RunningStats.Stat(1, 1, 1, 1, 1, 1, 0));
+		// a is 2x slower, significantly; b is 10% slower with no stddev
+		ProfileResults current = results(stats(2.0, 2.1, 1.9, 2.0, 2.05), new RunningStats.Stat(1.1, 1.1, 1.1, 1.1, 1.1, 1, 0));
+
+		List<ProfileResults.Regression> regressions = current.findRegressions(baseline, 0.05);
+		assertThat(regressions).hasSize(2);
+		assertThat(regressions.get(0).name).isEqualTo("a");
+		assertThat(regressions.get(0).slowdown()).isWithin(1e-9).of(2.01 / 1.01);
+		assertThat(regressions.get(0).pValue).isLessThan(0.01);
+
+		// b is within a 20% threshold
+		assertThat(current.findRegressions(baseline, 0.2)).hasSize(1);
+		// and nothing regressed against itself
+		assertThat(baseline.findRegressions(baseline, 0)).isEmpty();
+		// a small but insignificant slowdown isn't a regression
+		ProfileResults noisy = results(stats(0.5, 1.6, 0.9, 1.5, 1.05), new RunningStats.Stat(1, 1, 1, 1, 1, 1, 0));
+		assertThat(noisy.findRegressions(baseline, 0)).isEmpty();
+
+		AssertionError error = null;
+		try {
+			current.assertNoRegressions(baseline, 0.05);
+		} catch (AssertionError e) {
+			error = e;
+		}
+		assertThat(error.getMessage()).startsWith("2 regressions:\n  a: mean 2.01 s vs baseline 1.01 s (x1.99, p=");
+	}
+}
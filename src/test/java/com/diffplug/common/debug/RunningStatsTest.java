@@ -62,4 +62,58 @@ public class RunningStatsTest {
 		stats.add(0);
 		assertThat(stats.getStat().toString()).isEqualTo("median=0ms mean=0ms min=0ms max=0ms num=1 numNANorINFINITE=3");
 	}
+
+	@Test
+	public void testPercentiles() {
+		RunningStats stats = new RunningStats();
+		for (int i = 1; i <= 1000; ++i) {
+			stats.add(i);
+		}
+		RunningStats.Stat stat = stats.getStat();
+		assertThat(stat.median).isWithin(1e-9).of(500.5);
+		assertThat(stat.p90).isWithin(1e-9).of(900.1);
+		assertThat(stat.p99).isWithin(1e-9).of(990.01);
+		assertThat(stat.p999).isWithin(1e-9).of(999.001);
+		assertThat(stat.toStringPercentiles(TimeUnit.SECONDS)).isEqualTo("p50=501s p90=900s p99=990s p999=999s");
+	}
+
+	@Test
+	public void testStreaming() {
+		RunningStats exact = new RunningStats();
+		RunningStats streaming = RunningStats.createStreaming(0.01);
+		for (int i = 1; i <= 100_000; ++i) {
+			// a long-tailed distribution of latencies in seconds
+			double sample = 1e-6 * i * i;
+			exact.add(sample);
+			streaming.add(sample);
+		}
+		RunningStats.Stat exactStat = exact.getStat();
+		RunningStats.Stat streamingStat = streaming.getStat();
+		assertThat(streamingStat.num).isEqualTo(exactStat.num);
+		assertThat(streamingStat.total).isWithin(1e-6).of(exactStat.total);
+		assertThat(streamingStat.min).isEqualTo(exactStat.min);
+		assertThat(streamingStat.max).isEqualTo(exactStat.max);
+		assertThat(streamingStat.median).isWithin(0.01 * exactStat.median).of(exactStat.median);
+		assertThat(streamingStat.p90).isWithin(0.01 * exactStat.p90).of(exactStat.p90);
+		assertThat(streamingStat.p99).isWithin(0.01 * exactStat.p99).of(exactStat.p99);
+		assertThat(streamingStat.p999).isWithin(0.01 * exactStat.p999).of(exactStat.p999);
+	}
+
+	@Test
+	public void testStreamingFixedMemory() {
+		RunningStats streaming = RunningStats.createStreaming(0.01);
+		for (int exponent = -300; exponent <= 300; ++exponent) {
+			streaming.add(Math.pow(10, exponent));
+			streaming.add(-Math.pow(10, exponent));
+		}
+		QuantileSketch sketch = (QuantileSketch) streaming.quantiles;
+		assertThat(sketch.positive.counts.length).isAtMost(QuantileSketch.DEFAULT_MAX_BUCKETS);
+		assertThat(sketch.negative.counts.length).isAtMost(QuantileSketch.DEFAULT_MAX_BUCKETS);
+		// accuracy is lost near zero, but not in the tails
+		RunningStats.Stat stat = streaming.getStat();
+		assertThat(stat.num).isEqualTo(2 * 601);
+		assertThat(stat.max).isEqualTo(1e300);
+		// rank 0.999 * 1201 = 1199.8, and the sketch takes the sample at rank 1199 rather than interpolating
+		assertThat(stat.p999).isWithin(0.01 * 1e298).of(1e298);
+	}
 }
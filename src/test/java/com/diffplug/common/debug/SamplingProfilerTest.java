@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SamplingProfilerTest {
+	static volatile boolean spinning;
+	static volatile long sink;
+
+	static void hotMethod() {
+		while (spinning) {
+			sink += System.nanoTime();
+		}
+	}
+
+	private static String sampleHotMethod(String... classPrefixesToExclude) throws InterruptedException {
+		spinning = true;
+		Thread thread = new Thread(SamplingProfilerTest::hotMethod);
+		thread.start();
+		try (SamplingProfiler profiler = SamplingProfiler.thread(thread, 1, TimeUnit.MILLISECONDS, classPrefixesToExclude)) {
+			profiler.start();
+			while (profiler.getNumSamples() < 20) {
+				Thread.sleep(10);
+			}
+			profiler.stop();
+			return profiler.toCollapsedStacks();
+		} finally {
+			spinning = false;
+			thread.join();
+		}
+	}
+
+	@Test
+	public void testCollapsedStacks() throws InterruptedException {
+		String collapsed = sampleHotMethod();
+		assertThat(collapsed).containsMatch("^java\\.lang\\.Thread\\.run;.*SamplingProfilerTest\\.hotMethod.* \\d+\n");
+	}
+
+	@Test
+	public void testExclude() throws InterruptedException {
+		String collapsed = sampleHotMethod("java.", "sun.", "jdk.");
+		assertThat(collapsed).doesNotContain("java.");
+		assertThat(collapsed).containsMatch("^com\\.diffplug\\.common\\.debug\\.SamplingProfilerTest.*\\.hotMethod \\d+\n");
+	}
+
+	@Test
+	public void testAllExcluded() throws InterruptedException {
+		// every class starts with the empty string
+		String collapsed = sampleHotMethod("");
+		assertThat(collapsed).matches("\\(all frames excluded\\) \\d+\n");
+	}
+}
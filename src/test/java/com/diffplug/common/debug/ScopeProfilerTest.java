@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import com.diffplug.common.base.Errors;
+import com.diffplug.common.base.StringPrinter;
+
+public class ScopeProfilerTest {
+	@Test
+	public void testNestedAcrossThreads() {
+		ScopeProfiler profiler = new ScopeProfiler();
+		Runnable request = () -> {
+			for (int i = 0; i < 10; ++i) {
+				try (ScopeProfiler.Scope request1 = profiler.enter("request")) {
+					try (ScopeProfiler.Scope parse = profiler.enter("parse")) {
+						Errors.rethrow().run(() -> Thread.sleep(1));
+					}
+					try (ScopeProfiler.Scope render = profiler.enter("render")) {
+						Errors.rethrow().run(() -> Thread.sleep(2));
+					}
+				}
+			}
+		};
+		ThreadHarness.createAndRun(request::run, request::run, request::run);
+		// a thread which finished before another started has already been retired
+		assertThat(profiler.roots.size()).isAtMost(3);
+
+		ScopeProfiler.Node merged = profiler.merged();
+		assertThat(merged.numChildren).isEqualTo(1);
+		ScopeProfiler.Node requestNode = merged.children[0];
+		assertThat(requestNode.name).isEqualTo("request");
+		assertThat(requestNode.count).isEqualTo(30);
+		assertThat(requestNode.numChildren).isEqualTo(2);
+		assertThat(requestNode.children[0].name).isEqualTo("parse");
+		assertThat(requestNode.children[0].count).isEqualTo(30);
+		assertThat(requestNode.children[1].name).isEqualTo("render");
+		assertThat(requestNode.children[0].totalNanos).isLessThan(requestNode.children[1].totalNanos);
+		assertThat(requestNode.childNanos()).isAtMost(requestNode.totalNanos);
+
+		String collapsed = profiler.toCollapsedStacks();
+		assertThat(collapsed).contains("request;parse ");
+		assertThat(collapsed).contains("request;render ");
+	}
+
+	@Test
+	public void testStillOpen() {
+		ScopeProfiler profiler = new ScopeProfiler();
+		try (ScopeProfiler.Scope outer = profiler.enter("outer")) {
+			profiler.enter("inner").close();
+			PrintStream cleanOut = System.out;
+			StringBuilder printed = new StringBuilder();
+			System.setOut(new StringPrinter(printed::append).toPrintStream());
+			try {
+				profiler.printResults();
+			} finally {
+				System.setOut(cleanOut);
+			}
+			assertThat(printed.toString()).contains("\nouter: still open\n  inner: percent=");
+			assertThat(printed.toString()).doesNotContain("NaN");
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testOutOfOrder() {
+		ScopeProfiler profiler = new ScopeProfiler();
+		ScopeProfiler.Scope outer = profiler.enter("outer");
+		profiler.enter("inner");
+		outer.close();
+	}
+
+	@Test
+	public void testRetiresDeadThreads() throws InterruptedException {
+		ScopeProfiler profiler = new ScopeProfiler();
+		for (int i = 0; i < 10; ++i) {
+			Thread thread = new Thread(() -> profiler.enter("task").close());
+			thread.start();
+			thread.join();
+		}
+		profiler.enter("main").close();
+		// only the live thread keeps a tree, but the dead ones are still counted
+		assertThat(profiler.roots).hasSize(1);
+		ScopeProfiler.Node merged = profiler.merged();
+		assertThat(merged.numChildren).isEqualTo(2);
+		assertThat(merged.children[0].name).isEqualTo("task");
+		assertThat(merged.children[0].count).isEqualTo(10);
+		assertThat(merged.children[1].count).isEqualTo(1);
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class SignificanceTest {
+	@Test
+	public void testTCritical() {
+		// from a table of Student's t-distribution
+		assertThat(Significance.tCritical(0.95, 1)).isWithin(0.001).of(12.706);
+		assertThat(Significance.tCritical(0.95, 10)).isWithin(0.001).of(2.228);
+		assertThat(Significance.tCritical(0.99, 4)).isWithin(0.001).of(4.604);
+		assertThat(Significance.tCritical(0.99, 1000)).isWithin(0.001).of(2.581);
+	}
+
+	@Test
+	public void testWelch() {
+		RunningStats a = new RunningStats();
+		RunningStats b = new RunningStats();
+		RunningStats c = new RunningStats();
+		for (double sample : new double[]{10, 11, 9, 10.5, 9.5}) {
+			a.add(sample);
+			b.add(sample + 0.1);
+			c.add(sample + 5);
+		}
+		assertThat(a.getStat().stddev).isWithin(1e-9).of(Math.sqrt(0.625));
+		assertThat(Significance.welchPValue(a.getStat(), b.getStat())).isGreaterThan(0.5);
+		assertThat(Significance.welchPValue(a.getStat(), c.getStat())).isLessThan(0.001);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/** Unlike {@link StackDumperTest}, doesn't depend on line numbers or on the exact harness stack. */
+public class StackDumperCaptureTest {
+	private static StackDumper.FrameFilter filter(String[] classPrefixesToExclude, int limit) {
+		String[] toIgnore = {StackDumperCaptureTest.class.getName(), StackDumper.class.getName()};
+		return new StackDumper.FrameFilter(toIgnore, classPrefixesToExclude, false, limit);
+	}
+
+	@Test
+	public void testWalkerMatchesFallback() {
+		// StackWalker is only available on Java 9+
+		Assume.assumeNotNull(StackDumper.StackWalking.INSTANCE);
+		for (int limit : new int[]{0, 1, 3, Integer.MAX_VALUE}) {
+			for (String[] exclude : new String[][]{{}, {"org.junit."}}) {
+				List<StackTraceElement> walked = StackDumper.StackWalking.INSTANCE.capture(filter(exclude, limit));
+				List<StackTraceElement> fallback = filter(exclude, limit).filter(Thread.currentThread().getStackTrace());
+				Assert.assertEquals(fallback, walked);
+			}
+		}
+	}
+
+	@Test
+	public void testCaptureStackBelow() {
+		List<StackTraceElement> stack = StackDumper.captureStackBelow(StackDumperCaptureTest.class);
+		assertThat(stack).isNotEmpty();
+		for (StackTraceElement element : stack) {
+			assertThat(element.getClassName()).isNotEqualTo(StackDumperCaptureTest.class.getName());
+			assertThat(element.getClassName()).isNotEqualTo(StackDumper.class.getName());
+		}
+		List<StackTraceElement> limited = StackDumper.captureStackBelow(new Class<?>[]{StackDumperCaptureTest.class}, new String[]{"sun.", "jdk."}, true, 2);
+		Assert.assertEquals(2, limited.size());
+		Assert.assertEquals(stack.stream().filter(e -> !e.getClassName().startsWith("sun.") && !e.getClassName().startsWith("jdk.")).limit(2).collect(Collectors.toList()), limited);
+	}
+
+	@Test
+	public void testNothingIgnored() {
+		// when none of the ignored classes are on the stack, the whole stack is returned
+		StackTraceElement[] raw = new Throwable().getStackTrace();
+		StackDumper.FrameFilter filter = new StackDumper.FrameFilter(new String[]{"not.on.the.Stack"}, new String[0], false, Integer.MAX_VALUE);
+		Assert.assertEquals(raw.length, filter.filter(raw).size());
+	}
+}
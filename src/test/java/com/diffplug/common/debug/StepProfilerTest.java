@@ -19,6 +19,7 @@ import static com.google.common.truth.Truth.assertThat;
 
 import org.junit.Test;
 
+import com.diffplug.common.base.Errors;
 import com.diffplug.common.debug.LapTimer;
 import com.diffplug.common.debug.StepProfiler;
 
@@ -40,4 +41,177 @@ public class StepProfilerTest {
 		assertThat(initTotal).isWithin(0.1).of(0.1);
 		assertThat(runTotal).isWithin(0.1).of(0.9);
 	}
+
+	@Test
+	public void testHandles() {
+		StepProfiler profiler = new StepProfiler(LapTimer.createNanoWrap2Sec());
+		Runnable loop = () -> {
+			StepProfiler.StepHandle parse = profiler.step("parse");
+			StepProfiler.StepHandle render = profiler.step("render");
+			for (int i = 0; i < 10; ++i) {
+				parse.start();
+				Errors.rethrow().run(() -> Thread.sleep(1));
+				parse.finish();
+				render.start();
+				Errors.rethrow().run(() -> Thread.sleep(2));
+				render.finish();
+			}
+		};
+		ThreadHarness.createAndRun(loop::run, loop::run);
+
+		RunningStats.Stat parse = profiler.steps.get("parse").getStat();
+		RunningStats.Stat render = profiler.steps.get("render").getStat();
+		assertThat(parse.num).isEqualTo(20);
+		assertThat(render.num).isEqualTo(20);
+		assertThat(parse.min).isAtLeast(0.001);
+		assertThat(render.min).isAtLeast(0.002);
+		assertThat(parse.total).isLessThan(render.total);
+		// handles don't track the median
+		assertThat(parse.toString()).startsWith("mean=");
+	}
+
+	@Test
+	public void testHandlesPerRequest() throws InterruptedException {
+		StepProfiler profiler = new StepProfiler(LapTimer.createNanoWrap2Sec());
+		// a thread which calls step() per request keeps getting the same handle
+		assertThat(profiler.step("request")).isSameAs(profiler.step("request"));
+		// and a thread per request doesn't leave a handle behind for each thread
+		for (int i = 0; i < 100; ++i) {
+			Thread thread = new Thread(() -> {
+				StepProfiler.StepHandle handle = profiler.step("request");
+				handle.start();
+				handle.finish();
+			});
+			thread.start();
+			thread.join();
+		}
+		assertThat(profiler.steps.get("request").handles).hasSize(2);
+		assertThat(profiler.steps.get("request").getStat().num).isEqualTo(100);
+	}
+
+	@Test
+	public void testTrackAllocations() {
+		StepProfiler profiler = new StepProfiler(LapTimer.createNanoWrap2Sec());
+		profiler.trackAllocations();
+		long[][] keep = new long[10][];
+		for (int i = 0; i < 10; ++i) {
+			profiler.startStep("allocate");
+			keep[i] = new long[128 * 1024];
+			profiler.startStep("compute");
+			keep[i][i] = i;
+		}
+		profiler.finish();
+		assertThat(keep[9][9]).isEqualTo(9);
+
+		JvmMetrics.Meter allocate = profiler.steps.get("allocate").meter;
+		JvmMetrics.Meter compute = profiler.steps.get("compute").meter;
+		assertThat(allocate.numAllocations).isEqualTo(10);
+		assertThat(allocate.allocatedBytes).isAtLeast(10 * 8 * 128 * 1024.0);
+		assertThat(compute.allocatedBytes).isLessThan(64 * 1024.0);
+		assertThat(allocate.format("step")).startsWith("alloc=1.00 MB/step gc=");
+	}
+
+	@Test
+	public void testAllocationsStoppedOnAnotherThread() throws InterruptedException {
+		JvmMetrics.Meter meter = new JvmMetrics.Meter();
+		meter.trackAllocations = true;
+		meter.start();
+		Thread thread = new Thread(() -> meter.stop(1));
+		thread.start();
+		thread.join();
+		meter.start();
+		meter.stop(1);
+		// only the same-thread section is averaged, but both count towards gc
+		assertThat(meter.numAllocations).isEqualTo(1);
+		assertThat(meter.numGc).isEqualTo(2);
+		assertThat(meter.numOtherThread).isEqualTo(1);
+		assertThat(meter.format("step")).endsWith(" (1 stopped on another thread)");
+	}
+
+	@Test
+	public void testCpuStoppedOnAnotherThread() throws InterruptedException {
+		JvmMetrics.Meter meter = new JvmMetrics.Meter();
+		meter.trackCpu = true;
+		meter.start();
+		Thread thread = new Thread(() -> meter.stop(1));
+		thread.start();
+		thread.join();
+		meter.start();
+		long start = JvmMetrics.threadCpuNanos();
+		while (JvmMetrics.threadCpuNanos() - start < 10_000_000) {}
+		meter.stop(1);
+		// only the same-thread section counts, so the spin is nearly all cpu
+		assertThat(meter.numCpu).isEqualTo(1);
+		assertThat(meter.cpuNanos).isAtLeast(10_000_000.0);
+		assertThat(meter.cpuNanos).isAtMost(meter.cpuWallNanos);
+		assertThat(meter.format("step")).endsWith(" (1 stopped on another thread)");
+	}
+
+	@Test
+	public void testTrackCpuTime() throws InterruptedException {
+		StepProfiler profiler = new StepProfiler(LapTimer.createNanoWrap2Sec());
+		profiler.trackCpuTime();
+		for (int i = 0; i < 5; ++i) {
+			profiler.startStep("sleep");
+			Thread.sleep(10);
+			profiler.startStep("spin");
+			long start = JvmMetrics.threadCpuNanos();
+			while (JvmMetrics.threadCpuNanos() - start < 10_000_000) {}
+		}
+		profiler.finish();
+
+		StepProfiler.Step sleep = profiler.steps.get("sleep");
+		StepProfiler.Step spin = profiler.steps.get("spin");
+		double sleepWall = sleep.stats.getStat().total;
+		double spinWall = spin.stats.getStat().total;
+		assertThat(sleep.meter.cpuNanos * 1e-9).isLessThan(sleepWall / 2);
+		assertThat(spin.meter.cpuNanos * 1e-9).isWithin(0.02).of(0.05);
+		assertThat(spin.meter.format("step")).matches("cpu=\\S+ ms/step \\(\\d+% of wall, \\d+% user\\)");
+	}
+
+	@Test
+	public void testTimeline() {
+		StepProfiler profiler = new StepProfiler(LapTimer.createNanoWrap2Sec(), "p.");
+		profiler.recordTimeline(5);
+		profiler.startStep("init");
+		profiler.finish();
+		Runnable loop = () -> {
+			StepProfiler.StepHandle handle = profiler.step("work");
+			for (int i = 0; i < 10; ++i) {
+				handle.start();
+				handle.finish();
+			}
+		};
+		ThreadHarness.createAndRun(loop::run, loop::run);
+
+		String json = profiler.toChromeTrace();
+		assertThat(json).startsWith("{\"traceEvents\":[\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + Thread.currentThread().getId());
+		assertThat(json).contains("{\"name\":\"p.init\",\"ph\":\"X\",\"ts\":");
+		// two worker threads, each of which keeps only its last 5 spans
+		assertThat(json.split("\"name\":\"thread_name\"", -1)).hasLength(4);
+		assertThat(json.split("\"name\":\"p.work\"", -1)).hasLength(11);
+		assertThat(profiler.steps.get("work").getStat().num).isEqualTo(20);
+	}
+
+	@Test
+	public void testTimelineRetiresDeadThreads() throws InterruptedException {
+		Timeline timeline = new Timeline(3);
+		for (int i = 0; i < 10; ++i) {
+			Thread thread = new Thread(() -> {
+				timeline.record("dead", 0, 1);
+				timeline.record("dead", 1, 2);
+			}, "worker" + i);
+			thread.start();
+			thread.join();
+		}
+		timeline.record("live", 2, 3);
+		// only the live thread keeps a ring, and the dead threads share the last 3 spans
+		assertThat(timeline.rings).hasSize(1);
+		String json = timeline.toChromeJson();
+		assertThat(json.split("\"name\":\"dead\"", -1)).hasLength(4);
+		assertThat(json.split("\"name\":\"live\"", -1)).hasLength(2);
+		assertThat(json).contains("\"args\":{\"name\":\"worker9\"}");
+		assertThat(json).contains("\"args\":{\"name\":\"worker8\"}");
+		assertThat(json).doesNotContain("\"args\":{\"name\":\"worker7\"}");
+	}
 }
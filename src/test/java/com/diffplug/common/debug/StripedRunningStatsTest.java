@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+import com.diffplug.common.base.Errors;
+
+public class StripedRunningStatsTest {
+	@Test
+	public void testMerge() {
+		StripedRunningStats stats = new StripedRunningStats();
+		assertThat(stats.getStat().toString()).isEqualTo("No samples yet");
+
+		ThreadHarness harness = new ThreadHarness();
+		// keep every thread alive until they've all recorded, so that none of the stripes are retired
+		CyclicBarrier allRecorded = new CyclicBarrier(4);
+		for (int t = 0; t < 4; ++t) {
+			int offset = t;
+			harness.add(() -> {
+				for (int i = 0; i < 1000; ++i) {
+					stats.add(offset + 4 * i);
+				}
+				Errors.rethrow().run(allRecorded::await);
+			});
+		}
+		harness.run();
+
+		assertThat(stats.stripes).hasSize(4);
+		RunningStats.Stat stat = stats.getStat();
+		assertThat(stat.num).isEqualTo(4000);
+		assertThat(stat.min).isEqualTo(0.0);
+		assertThat(stat.max).isEqualTo(3999.0);
+		assertThat(stat.median).isEqualTo(1999.5);
+	}
+
+	@Test
+	public void testDeadThreadsAreRetired() throws InterruptedException {
+		StripedRunningStats stats = new StripedRunningStats();
+		for (int i = 0; i < 100; ++i) {
+			Thread thread = new Thread(() -> stats.add(1));
+			thread.start();
+			thread.join();
+		}
+		// only the last thread's stripe is left, the rest have been folded together
+		assertThat(stats.stripes).hasSize(1);
+		assertThat(stats.getStat().num).isEqualTo(100);
+	}
+
+	@Test
+	public void testStreaming() {
+		StripedRunningStats stats = StripedRunningStats.createStreaming(0.01);
+		ThreadHarness.createAndRun(() -> stats.add(1), () -> stats.add(2), () -> stats.add(Double.NaN));
+		RunningStats.Stat stat = stats.getStat();
+		assertThat(stat.num).isEqualTo(2);
+		assertThat(stat.numNanOrInfinite).isEqualTo(1);
+		assertThat(stat.total).isEqualTo(3.0);
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class TopKHistogramTest {
+	@Test
+	public void testExactWhileUnderCapacity() {
+		TopKHistogram<String> histogram = new TopKHistogram<>(10);
+		histogram.add("A", 500);
+		histogram.add("B", 1000);
+		histogram.add("C", 1500);
+		assertThat(histogram.getTopValues(2)).isEqualTo(
+				"C: 1500\n" +
+						"B: 1000\n");
+	}
+
+	@Test
+	public void testHeavyHitters() {
+		// 11,500 increments / 32 = ~360, so both "heavy" (1000) and "medium" (500) are guaranteed to be kept
+		TopKHistogram<String> histogram = new TopKHistogram<>(32);
+		for (int i = 0; i < 10_000; ++i) {
+			histogram.increment("user" + i);
+			if (i % 10 == 0) {
+				histogram.increment("heavy");
+			}
+			if (i % 20 == 0) {
+				histogram.increment("medium");
+			}
+		}
+		assertThat(histogram.size()).isEqualTo(32);
+		String top = histogram.getTopValues(2);
+		assertThat(top).startsWith("heavy : ");
+		assertThat(top).contains("\nmedium: ");
+		// the counts are upper bounds, with a lower bound shown if they might be overestimated
+		int heavy = Integer.parseInt(top.split("\n")[0].substring("heavy : ".length()).split(" ")[0]);
+		assertThat(heavy).isAtLeast(1000);
+	}
+
+	@Test
+	public void testLongCounts() {
+		TopKHistogram<String> histogram = new TopKHistogram<>(2);
+		histogram.add("A", Integer.MAX_VALUE);
+		assertThat(histogram.add("A", Integer.MAX_VALUE)).isEqualTo(2L * Integer.MAX_VALUE);
+		assertThat(histogram.getTopValues(1)).isEqualTo("A: 4294967294\n");
+	}
+}
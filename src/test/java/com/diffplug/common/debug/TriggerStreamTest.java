@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.diffplug.common.base.StringPrinter;
+
+public class TriggerStreamTest {
+	StringBuilder output = new StringBuilder();
+	List<String> events = new ArrayList<>();
+	List<List<StackTraceElement>> stacks = new ArrayList<>();
+
+	private PrintStream wrap(String... triggers) {
+		PrintStream source = new StringPrinter(output::append).toPrintStream();
+		return TriggerStream.wrap(source, triggers, (trigger, stack) -> {
+			// record how much had been printed when the trigger fired
+			events.add(trigger + "@" + output.length());
+			stacks.add(stack);
+		});
+	}
+
+	@Test
+	public void testOverlappingTriggers() {
+		PrintStream stream = wrap("he", "she", "his", "hers");
+		stream.println("ushers");
+		stream.println("nothing");
+		stream.println("this");
+		Assert.assertEquals("ushers\nnothing\nthis\n", output.toString());
+		// "ushers" contains she, he and hers, reported once each in the order they matched
+		assertThat(events).containsExactly("she@7", "he@7", "hers@7", "his@20").inOrder();
+	}
+
+	@Test
+	public void testOncePerLine() {
+		PrintStream stream = wrap("junk");
+		stream.println("junk junk junk");
+		stream.print("ju");
+		stream.print("nk");
+		Assert.assertEquals(1, events.size());
+		// fires once the line is finished, even if the trigger was split across writes
+		stream.println();
+		assertThat(events).containsExactly("junk@15", "junk@20").inOrder();
+	}
+
+	@Test
+	public void testDumpAfterLine() {
+		PrintStream stream = wrap("b");
+		stream.print("a\nb\nc\n");
+		assertThat(events).containsExactly("b@4");
+		Assert.assertEquals("a\nb\nc\n", output.toString());
+	}
+
+	@Test
+	public void testNonAscii() {
+		PrintStream stream = wrap("\u00b5s", "\u65e5\u672c");
+		stream.println("took 5\u00b5s in \u65e5\u672c");
+		stream.println("took 5us");
+		Assert.assertEquals(2, events.size());
+	}
+
+	@Test
+	public void testEmptyTrigger() {
+		// matches like String.contains
+		PrintStream stream = wrap("", "a");
+		stream.println("a");
+		stream.println();
+		Assert.assertEquals(3, events.size());
+	}
+
+	@Test
+	public void testCallerStack() {
+		PrintStream stream = wrap("trigger");
+		stream.println("trigger");
+		StackTraceElement top = stacks.get(0).get(0);
+		Assert.assertEquals(TriggerStreamTest.class.getName(), top.getClassName());
+		Assert.assertEquals("testCallerStack", top.getMethodName());
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class WindowedHistogramTest {
+	@Test
+	public void testWindow() {
+		AtomicLong now = new AtomicLong();
+		WindowedHistogram<String> histogram = new WindowedHistogram<>(3, 1, TimeUnit.SECONDS, 1.0, now::get);
+		histogram.add("A", 10);
+		now.set(TimeUnit.SECONDS.toNanos(1));
+		histogram.add("A", 1);
+		histogram.add("B", 5);
+		now.set(TimeUnit.SECONDS.toNanos(2));
+		histogram.add("C", 1);
+		assertThat(histogram.getTopValues(3)).isEqualTo(
+				"A: 11\n" +
+						"B: 5\n" +
+						"C: 1\n");
+
+		// the first slice falls out of the window
+		now.set(TimeUnit.SECONDS.toNanos(3));
+		assertThat(histogram.getTopValues(3)).isEqualTo(
+				"B: 5\n" +
+						"C: 1\n" +
+						"A: 1\n");
+
+		// and everything falls out eventually, even if nothing is recorded
+		now.set(TimeUnit.SECONDS.toNanos(60));
+		assertThat(histogram.getTopValues(3)).isEqualTo("");
+		histogram.increment("D");
+		assertThat(histogram.getTopValues(3)).isEqualTo("D: 1\n");
+	}
+
+	@Test
+	public void testDecaying() {
+		AtomicLong now = new AtomicLong();
+		// half-life of one slice
+		WindowedHistogram<String> histogram = new WindowedHistogram<>(10, 1, TimeUnit.SECONDS, 0.5, now::get);
+		histogram.add("old", 100);
+		now.set(TimeUnit.SECONDS.toNanos(2));
+		histogram.add("new", 30);
+		assertThat(histogram.getTopValues(2)).isEqualTo(
+				"new: 30\n" +
+						"old: 25\n");
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.common.debug;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class WindowedRunningStatsTest {
+	@Test
+	public void testWindow() {
+		AtomicLong now = new AtomicLong();
+		WindowedRunningStats stats = new WindowedRunningStats(2, 1, TimeUnit.MINUTES, 0.01, now::get);
+		assertThat(stats.getStat().toString()).isEqualTo("No samples yet");
+		stats.add(100);
+		now.set(TimeUnit.MINUTES.toNanos(1));
+		stats.add(1);
+		stats.add(2);
+		assertThat(stats.getStat().num).isEqualTo(3);
+		assertThat(stats.getStat().max).isEqualTo(100.0);
+
+		now.set(TimeUnit.MINUTES.toNanos(2));
+		RunningStats.Stat stat = stats.getStat();
+		assertThat(stat.num).isEqualTo(2);
+		assertThat(stat.max).isEqualTo(2.0);
+		assertThat(stat.mean).isEqualTo(1.5);
+	}
+}